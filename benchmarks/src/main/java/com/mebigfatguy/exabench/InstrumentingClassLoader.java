@@ -0,0 +1,90 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exabench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+
+/**
+ * loads its own copy of a class, optionally passing its bytes through a ClassFileTransformer first,
+ * the way the jvm would had the agent been installed. Both the baseline and the instrumented classes
+ * are loaded this way, so that they differ only by the transformation.
+ */
+public class InstrumentingClassLoader extends ClassLoader {
+
+    private String isolatedClassName;
+    private ClassFileTransformer transformer;
+
+    public InstrumentingClassLoader(ClassLoader parent, String className, ClassFileTransformer classTransformer) {
+        super(parent);
+        isolatedClassName = className;
+        transformer = classTransformer;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!name.equals(isolatedClassName)) {
+            return super.loadClass(name, resolve);
+        }
+
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                c = findClass(name);
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        String internalName = name.replace('.', '/');
+        try (InputStream is = getParent().getResourceAsStream(internalName + ".class")) {
+            if (is == null) {
+                throw new ClassNotFoundException(name);
+            }
+
+            byte[] bytes = readFully(is);
+            if (transformer != null) {
+                byte[] transformed = transformer.transform(this, internalName, null, null, bytes);
+                if (transformed != null) {
+                    bytes = transformed;
+                }
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        } catch (IOException | IllegalClassFormatException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = is.read(buffer)) >= 0) {
+            baos.write(buffer, 0, len);
+        }
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exabench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * the allocation and heap figures of a flight recording of a {@link ServiceWorkload} run. The allocation is
+ * summed from the last jdk.ThreadAllocationStatistics event of each thread, which hold running totals, and the
+ * retained heap is the heap used after the last collection, which the workload forces once its run is over.
+ */
+public class JfrSummary {
+
+    private static final String THREAD_ALLOCATION_EVENT = "jdk.ThreadAllocationStatistics";
+    private static final String HEAP_SUMMARY_EVENT = "jdk.GCHeapSummary";
+    private static final String GARBAGE_COLLECTION_EVENT = "jdk.GarbageCollection";
+    private static final String AFTER_GC = "After GC";
+
+    private long allocatedBytes;
+    private long retainedBytes;
+    private int collections;
+    private long pauseNanos;
+
+    private JfrSummary() {
+    }
+
+    public static JfrSummary read(Path recording) throws IOException {
+        JfrSummary summary = new JfrSummary();
+        Map<Long, Long> allocatedByThread = new HashMap<>();
+        long lastHeapSummary = Long.MIN_VALUE;
+
+        try (RecordingFile rf = new RecordingFile(recording)) {
+            while (rf.hasMoreEvents()) {
+                RecordedEvent event = rf.readEvent();
+                switch (event.getEventType().getName()) {
+                    case THREAD_ALLOCATION_EVENT:
+                        RecordedThread thread = event.getThread("thread");
+                        if (thread != null) {
+                            allocatedByThread.merge(Long.valueOf(thread.getJavaThreadId()), Long.valueOf(event.getLong("allocated")), Math::max);
+                        }
+                    break;
+
+                    case HEAP_SUMMARY_EVENT:
+                        long when = event.getStartTime().toEpochMilli();
+                        if (AFTER_GC.equals(event.getString("when")) && (when >= lastHeapSummary)) {
+                            lastHeapSummary = when;
+                            summary.retainedBytes = event.getLong("heapUsed");
+                        }
+                    break;
+
+                    case GARBAGE_COLLECTION_EVENT:
+                        summary.collections++;
+                        summary.pauseNanos += event.getDuration("sumOfPauses").toNanos();
+                    break;
+
+                    default:
+                    break;
+                }
+            }
+        }
+
+        for (Long allocated : allocatedByThread.values()) {
+            summary.allocatedBytes += allocated.longValue();
+        }
+        return summary;
+    }
+
+    /**
+     * @return the bytes allocated by all threads over the whole run
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return the bytes of heap used after the last collection
+     */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public int getCollections() {
+        return collections;
+    }
+
+    public long getPauseNanos() {
+        return pauseNanos;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exabench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * runs the {@link ServiceWorkload} in fresh jvms, without the agent, and with it for each of the given agent
+ * options, under a flight recording, and reports the median, over the runs, of its throughput, latency,
+ * allocation rate and retained heap. The configurations are run in turn, rather than one after the other, so
+ * that drift in the machine's performance affects them all alike. Needs java 11 or later, to read the recordings.
+ *
+ *     java -cp benchmarks.jar com.mebigfatguy.exabench.MacroBenchmark -agent exagent.jar [-config agent_options]...
+ *          [-runs n] [-threads n] [-seconds n] [-warmup n] [-depth n] [-exceptions percent] [-payload n] [-heap size]
+ *          [-save file] [-baseline file [-tolerance percent]]
+ *
+ * Each configuration's figures are also kept relative to those of the run without the agent, so that they can be
+ * compared across machines. With -save they are written to a file, and with -baseline the run fails if any
+ * configuration's relative throughput has fallen, or its relative latency, allocation or retained heap has grown,
+ * by more than the tolerance, 10% by default, from those of the file.
+ */
+public class MacroBenchmark {
+
+    public static final String AGENT_OFF = "off";
+    private static final String DEFAULT_CONFIG = "filter=com.mebigfatguy.exabench.**";
+
+    private static final String THROUGHPUT = "throughput";
+    private static final String P99 = "p99";
+    private static final String ALLOCATION_RATE = "allocMBperSec";
+    private static final String ALLOCATION_PER_REQUEST = "allocBytesPerRequest";
+    private static final String RETAINED = "retainedMB";
+    private static final String GC_PAUSE = "gcPauseMillis";
+    private static final String[] METRICS = { THROUGHPUT, P99, ALLOCATION_RATE, ALLOCATION_PER_REQUEST, RETAINED, GC_PAUSE };
+    /** the metrics compared against a baseline */
+    private static final String[] GATED_METRICS = { THROUGHPUT, P99, ALLOCATION_PER_REQUEST, RETAINED };
+    private static final String RATIO_SUFFIX = ".ratio";
+
+    private String agentJar;
+    private List<String> configs = new ArrayList<>();
+    private int runs = 3;
+    private int threads = 32;
+    private int seconds = 20;
+    private int warmup = 10;
+    private int depth = 64;
+    private int exceptionPercent = 5;
+    private int payloadSize = 4096;
+    private String heap = "1g";
+    private File saveFile;
+    private File baselineFile;
+    private double tolerance = 10.0;
+
+    public static void main(String[] args) throws Exception {
+        MacroBenchmark benchmark = new MacroBenchmark();
+        try {
+            benchmark.parseArgs(args);
+        } catch (RuntimeException e) {
+            System.err.println("usage: java -cp benchmarks.jar " + MacroBenchmark.class.getName() + " -agent exagent.jar [-config agent_options]..."
+                    + " [-runs n] [-threads n] [-seconds n] [-warmup n] [-depth n] [-exceptions percent] [-payload n] [-heap size]"
+                    + " [-save file] [-baseline file [-tolerance percent]]");
+            System.exit(1);
+        }
+
+        System.exit(benchmark.run() ? 0 : 2);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int a = 0; a < args.length; a += 2) {
+            String value = args[a + 1];
+            switch (args[a]) {
+                case "-agent":
+                    agentJar = new File(value).getAbsolutePath();
+                break;
+
+                case "-config":
+                    configs.add(value);
+                break;
+
+                case "-runs":
+                    runs = Integer.parseInt(value);
+                break;
+
+                case "-threads":
+                    threads = Integer.parseInt(value);
+                break;
+
+                case "-seconds":
+                    seconds = Integer.parseInt(value);
+                break;
+
+                case "-warmup":
+                    warmup = Integer.parseInt(value);
+                break;
+
+                case "-depth":
+                    depth = Integer.parseInt(value);
+                break;
+
+                case "-exceptions":
+                    exceptionPercent = Integer.parseInt(value);
+                break;
+
+                case "-payload":
+                    payloadSize = Integer.parseInt(value);
+                break;
+
+                case "-heap":
+                    heap = value;
+                break;
+
+                case "-save":
+                    saveFile = new File(value);
+                break;
+
+                case "-baseline":
+                    baselineFile = new File(value);
+                break;
+
+                case "-tolerance":
+                    tolerance = Double.parseDouble(value);
+                break;
+
+                default:
+                    throw new IllegalArgumentException(args[a]);
+            }
+        }
+
+        if (agentJar == null) {
+            throw new IllegalArgumentException("-agent");
+        }
+        if (configs.isEmpty()) {
+            configs.add(DEFAULT_CONFIG);
+        }
+    }
+
+    /**
+     * @return whether the results are within the tolerance of the baseline, or true when there is none
+     */
+    private boolean run() throws IOException, InterruptedException {
+        List<String> labels = new ArrayList<>();
+        labels.add(AGENT_OFF);
+        labels.addAll(configs);
+
+        Map<String, List<Map<String, Double>>> results = new LinkedHashMap<>();
+        for (String label : labels) {
+            results.put(label, new ArrayList<Map<String, Double>>());
+        }
+        for (int r = 0; r < runs; r++) {
+            for (String label : labels) {
+                Map<String, Double> result = runOnce(AGENT_OFF.equals(label) ? null : label);
+                System.out.println("run " + (r + 1) + " " + label + ": " + result);
+                results.get(label).add(result);
+            }
+        }
+
+        Properties summary = new Properties();
+        Map<String, Double> off = median(results.get(AGENT_OFF));
+        System.out.println();
+        // agent options can be long, so the first column is as wide as the longest of them
+        int width = "configuration".length();
+        for (String label : labels) {
+            width = Math.max(width, label.length());
+        }
+        System.out.println(String.format("%-" + width + "s %12s %10s %14s %14s %12s %12s", "configuration", "requests/s", "p99 us", "alloc MB/s", "alloc B/req", "retained MB", "gc pause ms"));
+        for (String label : labels) {
+            Map<String, Double> median = median(results.get(label));
+            System.out.println(String.format("%-" + width + "s %12.0f %10.0f %14.1f %14.0f %12.1f %12.0f", label, median.get(THROUGHPUT), median.get(P99),
+                    median.get(ALLOCATION_RATE), median.get(ALLOCATION_PER_REQUEST), median.get(RETAINED), median.get(GC_PAUSE)));
+            for (String metric : METRICS) {
+                summary.setProperty(label + '.' + metric, String.valueOf(median.get(metric)));
+                double offValue = off.get(metric).doubleValue();
+                if (offValue > 0.0) {
+                    summary.setProperty(label + '.' + metric + RATIO_SUFFIX, String.valueOf(median.get(metric).doubleValue() / offValue));
+                }
+            }
+        }
+
+        if (saveFile != null) {
+            try (OutputStream os = new FileOutputStream(saveFile)) {
+                summary.store(os, "exagent macro benchmark, " + runs + " runs of " + seconds + "s, " + threads + " threads, depth " + depth);
+            }
+        }
+        return (baselineFile == null) || compare(summary, configs);
+    }
+
+    /**
+     * runs the workload in a new jvm, with the agent when there are agent options
+     *
+     * @return the metrics of the run
+     */
+    private Map<String, Double> runOnce(String agentArgs) throws IOException, InterruptedException {
+        Path recording = Files.createTempFile("exagent-macro", ".jfr");
+        try {
+            List<String> command = new ArrayList<>();
+            command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+            command.add("-Xms" + heap);
+            command.add("-Xmx" + heap);
+            command.add("-XX:+IgnoreUnrecognizedVMOptions");
+            command.add("--add-opens=java.base/java.lang=ALL-UNNAMED");
+            command.add("-XX:StartFlightRecording=dumponexit=true,settings=default,filename=" + recording);
+            if (agentArgs != null) {
+                command.add("-javaagent:" + agentJar + (agentArgs.isEmpty() ? "" : "=" + agentArgs));
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ServiceWorkload.class.getName());
+            command.addAll(Arrays.asList(String.valueOf(threads), String.valueOf(seconds), String.valueOf(warmup),
+                    String.valueOf(depth), String.valueOf(exceptionPercent), String.valueOf(payloadSize)));
+
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            Properties output = new Properties();
+            try (InputStream is = process.getInputStream()) {
+                output.load(is);
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("Workload failed: " + command);
+            }
+
+            JfrSummary jfr = JfrSummary.read(recording);
+            double elapsedSeconds = Double.parseDouble(output.getProperty("elapsed")) / 1000.0;
+            Map<String, Double> result = new LinkedHashMap<>();
+            result.put(THROUGHPUT, Double.valueOf(output.getProperty(THROUGHPUT)));
+            result.put(P99, Double.valueOf(output.getProperty(P99)));
+            result.put(ALLOCATION_RATE, Double.valueOf((jfr.getAllocatedBytes() / (1024.0 * 1024.0)) / elapsedSeconds));
+            result.put(ALLOCATION_PER_REQUEST, Double.valueOf(jfr.getAllocatedBytes() / Math.max(1.0, Double.parseDouble(output.getProperty("requests")))));
+            result.put(RETAINED, Double.valueOf(jfr.getRetainedBytes() / (1024.0 * 1024.0)));
+            result.put(GC_PAUSE, Double.valueOf(jfr.getPauseNanos() / 1000000.0));
+            return result;
+        } finally {
+            Files.deleteIfExists(recording);
+        }
+    }
+
+    private static Map<String, Double> median(List<Map<String, Double>> runResults) {
+        Map<String, Double> median = new LinkedHashMap<>();
+        for (String metric : METRICS) {
+            double[] values = new double[runResults.size()];
+            for (int r = 0; r < values.length; r++) {
+                values[r] = runResults.get(r).get(metric).doubleValue();
+            }
+            Arrays.sort(values);
+            median.put(metric, Double.valueOf(values[values.length / 2]));
+        }
+        return median;
+    }
+
+    /**
+     * compares the agent configurations' figures, relative to those without the agent, to the baseline's
+     *
+     * @return whether all are within the tolerance
+     */
+    private boolean compare(Properties summary, List<String> agentConfigs) throws IOException {
+        Properties baseline = new Properties();
+        try (InputStream is = new FileInputStream(baselineFile)) {
+            baseline.load(is);
+        }
+
+        boolean passed = true;
+        int width = 0;
+        for (String label : agentConfigs) {
+            width = Math.max(width, label.length());
+        }
+        System.out.println();
+        for (String label : agentConfigs) {
+            for (String metric : GATED_METRICS) {
+                String key = label + '.' + metric + RATIO_SUFFIX;
+                String base = baseline.getProperty(key);
+                String current = summary.getProperty(key);
+                if ((base == null) || (current == null)) {
+                    continue;
+                }
+
+                double baseRatio = Double.parseDouble(base);
+                double currentRatio = Double.parseDouble(current);
+                // throughput is the one figure where lower is worse
+                double change = THROUGHPUT.equals(metric) ? (baseRatio - currentRatio) / baseRatio : (currentRatio - baseRatio) / baseRatio;
+                boolean regressed = (change * 100.0) > tolerance;
+                passed &= !regressed;
+                System.out.println(String.format("%s %-" + width + "s %-22s baseline %.3f, now %.3f", regressed ? "REGRESSED" : "ok       ", label, metric, baseRatio, currentRatio));
+            }
+        }
+        return passed;
+    }
+}
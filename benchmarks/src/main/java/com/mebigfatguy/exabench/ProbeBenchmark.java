@@ -0,0 +1,106 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exabench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mebigfatguy.exagent.rtsupport.EXASupport;
+
+/**
+ * measures the per call cost of the probes, and the cost of a throw through embellishMessage,
+ * against an uninstrumented copy of the same class. Run with -prof gc (as BenchmarkRunner does)
+ * to see the allocation rate of each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-XX:+IgnoreUnrecognizedVMOptions", "--add-opens=java.base/java.lang=ALL-UNNAMED" })
+public class ProbeBenchmark {
+
+    @Param({ Workloads.BASELINE, "capture_mode=eager", "capture_mode=eager;parm_size_limit=16", "capture_mode=lazy", "capture_mode=lazy;parm_size_limit=16" })
+    public String agentArgs;
+
+    @Param({ "32" })
+    public int depth;
+
+    private Workload workload;
+    private String text;
+    private Object object;
+    private byte[] bytes;
+    private Object[] objects;
+
+    @Setup
+    public void setup() throws Exception {
+        workload = Workloads.create(Workload.class, WorkloadImpl.class, agentArgs);
+        text = "a parameter of moderate length, longer than the limit";
+        object = new StringBuilder(text);
+        bytes = new byte[256];
+        objects = new Object[] { text, object, Integer.valueOf(42) };
+    }
+
+    @Benchmark
+    public int noArgs() {
+        return workload.noArgs();
+    }
+
+    @Benchmark
+    public long primitiveParms() {
+        return workload.primitives(1, 2L, 3.0, true);
+    }
+
+    @Benchmark
+    public int referenceParms() {
+        return workload.references(text, object);
+    }
+
+    @Benchmark
+    public int arrayParms() {
+        return workload.arrays(bytes, objects);
+    }
+
+    @Benchmark
+    public int deepChain() {
+        return workload.chain(depth, text);
+    }
+
+    @Benchmark
+    public int throwPath() {
+        try {
+            workload.throwAt(depth, text);
+            return 0;
+        } catch (IllegalStateException e) {
+            // frames of the methods the exception unwound through may not have been popped
+            EXASupport.getFrameStack().popTo(0);
+            return e.getMessage().length();
+        }
+    }
+}
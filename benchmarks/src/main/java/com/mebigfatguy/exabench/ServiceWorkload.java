@@ -0,0 +1,261 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exabench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a synthetic service, run in its own jvm by {@link MacroBenchmark}, with or without the agent. Worker threads
+ * handle requests, with large parameters, through a deep chain of calls, a share of which fail, throwing
+ * exceptions that are wrapped on the way up, and caught by the worker. Once the run is over, the throughput and
+ * latency percentiles are printed as properties. The workers are left parked, so that the allocation of each is
+ * still reported when the flight recording is dumped as the jvm exits.
+ *
+ *     java -cp benchmarks.jar com.mebigfatguy.exabench.ServiceWorkload threads seconds warmup_seconds depth exception_percent payload_size
+ */
+public class ServiceWorkload {
+
+    /** the latencies each worker keeps, past which later ones are sampled into the ones kept */
+    private static final int MAX_LATENCIES = 1 << 18;
+
+    private final int depth;
+    private final int exceptionPercent;
+    private final int payloadSize;
+
+    public ServiceWorkload(int depth, int exceptionPercent, int payloadSize) {
+        this.depth = depth;
+        this.exceptionPercent = exceptionPercent;
+        this.payloadSize = payloadSize;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threadCount = Integer.parseInt(args[0]);
+        long seconds = Long.parseLong(args[1]);
+        long warmupSeconds = Long.parseLong(args[2]);
+        ServiceWorkload service = new ServiceWorkload(Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch done = new CountDownLatch(threadCount);
+        CountDownLatch exit = new CountDownLatch(1);
+        List<Worker> workers = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Worker worker = new Worker(service, measureStart, end, done, exit);
+            workers.add(worker);
+            Thread thread = new Thread(worker, "worker-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+
+        long requests = 0;
+        long failures = 0;
+        long totalRequests = 0;
+        long[] latencies = new long[0];
+        for (Worker worker : workers) {
+            requests += worker.measuredRequests;
+            failures += worker.measuredFailures;
+            totalRequests += worker.totalRequests;
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + worker.latencyCount);
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.latencyCount);
+        }
+        Arrays.sort(latencies);
+
+        // what is still reachable once the run is over, shows up in the flight recording's last heap summary
+        System.gc();
+
+        System.out.println("throughput=" + ((requests * 1000L) / Math.max(1L, TimeUnit.SECONDS.toMillis(seconds))));
+        System.out.println("failures=" + failures);
+        System.out.println("requests=" + totalRequests);
+        System.out.println("p50=" + percentile(latencies, 50.0));
+        System.out.println("p99=" + percentile(latencies, 99.0));
+        System.out.println("p999=" + percentile(latencies, 99.9));
+        System.out.println("elapsed=" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * @return the latency, in microseconds, below which the given percentage of the sorted latencies fall
+     */
+    private static long percentile(long[] sortedLatencies, double percent) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sortedLatencies.length - 1, Math.ceil((percent / 100.0) * sortedLatencies.length) - 1);
+        return TimeUnit.NANOSECONDS.toMicros(sortedLatencies[Math.max(0, index)]);
+    }
+
+    /**
+     * handles one request, through the chain of calls
+     *
+     * @return the request's result
+     */
+    public long handle(Request request) {
+        return route(request, depth, request.path);
+    }
+
+    private long route(Request request, int level, String path) {
+        if (level == 0) {
+            return process(request, path);
+        }
+        if (level == (depth / 2)) {
+            try {
+                return route(request, level - 1, path + '/' + level);
+            } catch (ServiceException e) {
+                throw new IllegalStateException("failed to route " + request.id, e);
+            }
+        }
+        return route(request, level - 1, path + '/' + level);
+    }
+
+    private long process(Request request, String path) {
+        long sum = path.length();
+        for (int value : request.data) {
+            sum += value;
+        }
+        if (ThreadLocalRandom.current().nextInt(100) < exceptionPercent) {
+            throw new ServiceException("request " + request.id + " rejected with " + request.headers.size() + " headers");
+        }
+        return sum;
+    }
+
+    /**
+     * @return a new request, with a payload of about payloadSize characters and ints
+     */
+    public Request newRequest(long id) {
+        char[] body = new char[payloadSize];
+        Arrays.fill(body, 'x');
+        int[] data = new int[payloadSize];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = i;
+        }
+        Map<String, String> headers = new HashMap<>();
+        headers.put("id", String.valueOf(id));
+        headers.put("user", "user" + (id % 97));
+        headers.put("trace", Long.toHexString(id * 31));
+        return new Request(id, "/service/" + (id % 13), new String(body), data, headers);
+    }
+
+    public static class Request {
+        final long id;
+        final String path;
+        final String body;
+        final int[] data;
+        final Map<String, String> headers;
+
+        Request(long requestId, String requestPath, String requestBody, int[] requestData, Map<String, String> requestHeaders) {
+            id = requestId;
+            path = requestPath;
+            body = requestBody;
+            data = requestData;
+            headers = requestHeaders;
+        }
+
+        @Override
+        public String toString() {
+            return "Request[id=" + id + ", path=" + path + ", body=" + body + ", headers=" + headers + "]";
+        }
+    }
+
+    public static class ServiceException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ServiceException(String message) {
+            super(message);
+        }
+    }
+
+    static class Worker implements Runnable {
+
+        private final ServiceWorkload service;
+        private final long measureStart;
+        private final long end;
+        private final CountDownLatch done;
+        private final CountDownLatch exit;
+        final long[] latencies = new long[MAX_LATENCIES];
+        int latencyCount;
+        long measuredRequests;
+        long measuredFailures;
+        long totalRequests;
+        /** keeps the results alive, so the work can't be optimized away */
+        long sink;
+
+        Worker(ServiceWorkload workload, long measureFrom, long measureTo, CountDownLatch doneLatch, CountDownLatch exitLatch) {
+            service = workload;
+            measureStart = measureFrom;
+            end = measureTo;
+            done = doneLatch;
+            exit = exitLatch;
+        }
+
+        @Override
+        public void run() {
+            long id = 0;
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                boolean failed = false;
+                try {
+                    sink += service.handle(service.newRequest(id++));
+                } catch (RuntimeException e) {
+                    failed = true;
+                    sink += e.getMessage().length();
+                }
+                long finished = System.nanoTime();
+                totalRequests++;
+                if (now >= measureStart) {
+                    measuredRequests++;
+                    if (failed) {
+                        measuredFailures++;
+                    }
+                    record(finished - now);
+                }
+            }
+            done.countDown();
+
+            try {
+                exit.await();
+            } catch (InterruptedException e) {
+                // just exit
+            }
+        }
+
+        /**
+         * keeps every latency until the array is full, then replaces random ones, so that what is kept
+         * remains a uniform sample of the run
+         */
+        private void record(long latency) {
+            if (latencyCount < latencies.length) {
+                latencies[latencyCount++] = latency;
+            } else {
+                long slot = ThreadLocalRandom.current().nextLong(measuredRequests);
+                if (slot < latencies.length) {
+                    latencies[(int) slot] = latency;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exabench;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * measures starting many short lived threads that each make one instrumented call chain, with each thread
+ * state, on platform threads and on virtual threads. Each operation runs all the threads, so divide the time
+ * and the allocation (gc.alloc.rate.norm) by the thread count for the cost per thread. Virtual threads are
+ * created reflectively, as this module builds for java 8, so those runs need java 21 or later.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-XX:+IgnoreUnrecognizedVMOptions", "--add-opens=java.base/java.lang=ALL-UNNAMED" })
+public class VirtualThreadBenchmark {
+
+    public static final String PLATFORM_THREADS = "platform";
+    public static final String VIRTUAL_THREADS = "virtual";
+
+    @Param({ Workloads.BASELINE, "thread_state=threadlocal", "thread_state=pooled" })
+    public String agentArgs;
+
+    @Param({ PLATFORM_THREADS, VIRTUAL_THREADS })
+    public String threadKind;
+
+    @Param({ "1000" })
+    public int threadCount;
+
+    @Param({ "8" })
+    public int depth;
+
+    private Workload workload;
+    private ThreadFactory factory;
+    private Thread[] threads;
+    private Runnable task;
+
+    @Setup
+    public void setup() throws Exception {
+        workload = Workloads.create(Workload.class, WorkloadImpl.class, agentArgs);
+        factory = VIRTUAL_THREADS.equals(threadKind) ? virtualThreadFactory() : Thread::new;
+        threads = new Thread[threadCount];
+        String text = "a parameter";
+        task = () -> workload.chain(depth, text);
+    }
+
+    @Benchmark
+    public void startThreads() throws InterruptedException {
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = factory.newThread(task);
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    /**
+     * @return Thread.ofVirtual().factory(), looked up reflectively
+     */
+    private static ThreadFactory virtualThreadFactory() throws Exception {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+    }
+}
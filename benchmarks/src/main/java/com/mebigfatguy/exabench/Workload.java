@@ -0,0 +1,37 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exabench;
+
+/**
+ * the calls being measured. The implementation is loaded separately for each benchmark,
+ * either as is, or rewritten by the StackTraceTransformer.
+ */
+public interface Workload {
+
+    int noArgs();
+
+    long primitives(int i, long l, double d, boolean b);
+
+    int references(String s, Object o);
+
+    int arrays(byte[] bytes, Object[] objects);
+
+    int chain(int depth, String s);
+
+    void throwAt(int depth, String s);
+}
@@ -0,0 +1,62 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exabench;
+
+/**
+ * the code that gets instrumented. The bodies are trivial so that the probes dominate.
+ */
+public class WorkloadImpl implements Workload {
+
+    private int counter;
+
+    @Override
+    public int noArgs() {
+        return ++counter;
+    }
+
+    @Override
+    public long primitives(int i, long l, double d, boolean b) {
+        return b ? i + l + (long) d : i - l;
+    }
+
+    @Override
+    public int references(String s, Object o) {
+        return s.length() + ((o == null) ? 0 : 1);
+    }
+
+    @Override
+    public int arrays(byte[] bytes, Object[] objects) {
+        return bytes.length + objects.length;
+    }
+
+    @Override
+    public int chain(int depth, String s) {
+        if (depth == 0) {
+            return s.length();
+        }
+        return chain(depth - 1, s) + 1;
+    }
+
+    @Override
+    public void throwAt(int depth, String s) {
+        if (depth == 0) {
+            throw new IllegalStateException("failed on " + s.length());
+        }
+        throwAt(depth - 1, s);
+    }
+}
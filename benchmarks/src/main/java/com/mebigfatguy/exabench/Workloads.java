@@ -0,0 +1,52 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exabench;
+
+import java.lang.instrument.ClassFileTransformer;
+
+import com.mebigfatguy.exagent.ExAgent;
+import com.mebigfatguy.exagent.Options;
+
+public class Workloads {
+
+    /** the agent arguments value that means no instrumentation at all */
+    public static final String BASELINE = "none";
+    /** the workload's methods are trivial, so are only probed if skipping them isn't left on by default */
+    private static final String SKIP_TRIVIAL = "skip_trivial";
+
+    private Workloads() {
+    }
+
+    /**
+     * creates a fresh copy of a class implementing the given interface, instrumented as if exagent was
+     * installed with the given agent arguments, or not instrumented for {@link #BASELINE}. Unless the arguments
+     * say otherwise, trivial methods are probed too.
+     */
+    public static <T> T create(Class<T> api, Class<? extends T> implementation, String agentArgs) throws Exception {
+        ClassFileTransformer transformer = null;
+        if (!BASELINE.equals(agentArgs)) {
+            if (!agentArgs.contains(SKIP_TRIVIAL)) {
+                agentArgs += ";" + SKIP_TRIVIAL + "=false";
+            }
+            transformer = ExAgent.configure(new Options(agentArgs));
+        }
+
+        ClassLoader loader = new InstrumentingClassLoader(Workloads.class.getClassLoader(), implementation.getName(), transformer);
+        return api.cast(loader.loadClass(implementation.getName()).newInstance());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.examaven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import com.mebigfatguy.exagent.OfflineInstrumenter;
+import com.mebigfatguy.exagent.Options;
+
+/**
+ * instruments the project's classes ahead of time, as they are compiled, so that the application runs
+ * instrumented with exagent on its class path, rather than attached as an agent. The classes are rewritten
+ * in place, unless an output directory is given.
+ */
+@Mojo(name = "instrument", defaultPhase = LifecyclePhase.PROCESS_CLASSES, requiresDependencyResolution = ResolutionScope.COMPILE, threadSafe = true)
+public class InstrumentMojo extends AbstractMojo {
+
+    /** the agent options, as given after the equals sign of the -javaagent specification */
+    @Parameter(property = "exagent.options")
+    private String options;
+
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File classesDirectory;
+
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File outputDirectory;
+
+    /** the number of classes to instrument at once, by default one per processor */
+    @Parameter(property = "exagent.threads", defaultValue = "0")
+    private int threads;
+
+    @Parameter(property = "exagent.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true, required = true)
+    private List<String> classpathElements;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Skipping exagent instrumentation");
+            return;
+        }
+        if (!classesDirectory.isDirectory()) {
+            getLog().info("No classes to instrument in " + classesDirectory);
+            return;
+        }
+
+        List<File> classpath = new ArrayList<>();
+        for (String element : classpathElements) {
+            File f = new File(element);
+            if (!f.equals(classesDirectory)) {
+                classpath.add(f);
+            }
+        }
+
+        int parallelism = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        OfflineInstrumenter instrumenter = new OfflineInstrumenter(new Options(options), classpath, parallelism);
+        try {
+            int count = instrumenter.instrument(classesDirectory, outputDirectory);
+            getLog().info("Instrumented " + count + " classes of " + classesDirectory);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to instrument " + classesDirectory, e);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mebigfatguy.exagent.rtsupport.ThrowObserver;
+
+/**
+ * drives adaptive mode, where classes start out with just throw observers. A few times a second, the stack
+ * traces of the exceptions observed are looked through, and the classes whose methods show up in them are
+ * retransformed, giving those methods probes, so that from then on their exceptions are embellished. The
+ * stack traces are only materialized here, never on the throwing thread.
+ */
+public class AdaptiveInstrumenter implements Runnable {
+
+    private static final long PERIOD_MILLIS = 250L;
+    private static final int MAX_CAUSES = 8;
+    /** frames already dealt with, past which the set is cleared, at the cost of looking some up again */
+    private static final int MAX_SEEN_FRAMES = 65536;
+
+    private static Thread instrumenterThread;
+
+    private Instrumentation instrumentation;
+    private StackTraceTransformer mutator;
+    private Set<String> seenFrames = new HashSet<>();
+    private int classesRetransformed;
+
+    private AdaptiveInstrumenter(Instrumentation inst, StackTraceTransformer transformer) {
+        instrumentation = inst;
+        mutator = transformer;
+    }
+
+    /**
+     * starts observing exceptions, and giving probes to the methods they pass through, replacing any instrumenter
+     * already running
+     */
+    public static synchronized void start(Instrumentation inst, StackTraceTransformer transformer) {
+        stop();
+        ThrowObserver.setObserving(true);
+        instrumenterThread = new Thread(new AdaptiveInstrumenter(inst, transformer), "exagent-adaptive");
+        instrumenterThread.setDaemon(true);
+        instrumenterThread.start();
+    }
+
+    public static synchronized void stop() {
+        if (instrumenterThread != null) {
+            ThrowObserver.setObserving(false);
+            instrumenterThread.interrupt();
+            instrumenterThread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                Thread.sleep(PERIOD_MILLIS);
+                instrumentFailures();
+            }
+        } catch (InterruptedException e) {
+            // just exit
+        }
+    }
+
+    private void instrumentFailures() {
+        Map<String, Set<String>> newFrames = collectNewFrames();
+        if (newFrames.isEmpty()) {
+            return;
+        }
+
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+            String className = c.getName().replace('.', '/');
+            Set<String> methods = newFrames.get(className);
+            if ((methods == null) || !instrumentation.isModifiableClass(c) || !mutator.isInstrumentable(c.getClassLoader(), className)) {
+                continue;
+            }
+
+            // the methods are recorded by name, so a class of the same name in another loader gets them too
+            for (String method : methods) {
+                mutator.addFailingMethod(className, method);
+            }
+            classes.add(c);
+        }
+
+        if (!classes.isEmpty()) {
+            ExAgent.retransform(instrumentation, classes);
+            classesRetransformed += classes.size();
+        }
+    }
+
+    /**
+     * @return the methods, by slashed class name, of the frames of the observed exceptions not seen before
+     */
+    private Map<String, Set<String>> collectNewFrames() {
+        Map<String, Set<String>> newFrames = new HashMap<>();
+        Set<Throwable> visited = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        Throwable observed;
+        while ((observed = ThrowObserver.poll()) != null) {
+            Throwable t = observed;
+            for (int c = 0; (t != null) && (c < MAX_CAUSES) && visited.add(t); c++) {
+                for (StackTraceElement element : t.getStackTrace()) {
+                    String className = element.getClassName().replace('.', '/');
+                    if (seenFrames.add(className + '#' + element.getMethodName())) {
+                        Set<String> methods = newFrames.get(className);
+                        if (methods == null) {
+                            methods = new HashSet<>();
+                            newFrames.put(className, methods);
+                        }
+                        methods.add(element.getMethodName());
+                    }
+                }
+                t = t.getCause();
+            }
+        }
+
+        if (seenFrames.size() > MAX_SEEN_FRAMES) {
+            seenFrames.clear();
+        }
+        return newFrames;
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.mebigfatguy.exagent.rtsupport.CaptureBudgetController;
+import com.mebigfatguy.exagent.rtsupport.ExceptionFingerprint;
+import com.mebigfatguy.exagent.rtsupport.FrameStack;
+import com.mebigfatguy.exagent.rtsupport.MethodRegistry;
+import com.mebigfatguy.exagent.rtsupport.ReportSink;
+import com.mebigfatguy.exagent.rtsupport.StormGuard;
+
+/**
+ * collects the agent's activity. Transform counts are kept in striped adders, as classes are loaded
+ * concurrently, while the per call counts are kept by each thread's FrameStack, and are only summed
+ * when read, so that instrumented code never contends on a shared counter.
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+
+    public static final String OBJECT_NAME = "com.mebigfatguy.exagent:type=AgentMetrics";
+
+    private static final LongAdder CLASSES_TRANSFORMED = new LongAdder();
+    private static final LongAdder CLASSES_SKIPPED = new LongAdder();
+    private static final LongAdder TRANSFORM_NANOS = new LongAdder();
+    private static final Map<String, Long> CLASS_TRANSFORM_NANOS = new ConcurrentHashMap<>();
+    private static final LongAdder METHODS_INSTRUMENTED = new LongAdder();
+    private static final LongAdder METHODS_SKIPPED = new LongAdder();
+    private static final Map<String, Integer> CLASS_SKIPPED_METHODS = new ConcurrentHashMap<>();
+
+    public static void classTransformed(String className, long nanos) {
+        CLASSES_TRANSFORMED.increment();
+        TRANSFORM_NANOS.add(nanos);
+        CLASS_TRANSFORM_NANOS.merge(className, Long.valueOf(nanos), Long::sum);
+    }
+
+    /**
+     * records how many of a class's methods were instrumented, and how many were skipped as not worth a probe
+     */
+    public static void methodsClassified(String className, int instrumented, int skipped) {
+        METHODS_INSTRUMENTED.add(instrumented);
+        METHODS_SKIPPED.add(skipped);
+        if (skipped > 0) {
+            CLASS_SKIPPED_METHODS.merge(className, Integer.valueOf(skipped), Integer::sum);
+        }
+    }
+
+    public static void classSkipped() {
+        CLASSES_SKIPPED.increment();
+    }
+
+    /**
+     * registers the metrics with the platform MBean server, if they aren't already
+     */
+    public static synchronized void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new AgentMetrics(), name);
+            }
+        } catch (Exception e) {
+            // swallow it
+        }
+    }
+
+    @Override
+    public long getClassesTransformed() {
+        return CLASSES_TRANSFORMED.sum();
+    }
+
+    @Override
+    public long getClassesSkipped() {
+        return CLASSES_SKIPPED.sum();
+    }
+
+    @Override
+    public long getTransformTimeNanos() {
+        return TRANSFORM_NANOS.sum();
+    }
+
+    @Override
+    public Map<String, Long> getClassTransformTimes() {
+        return new TreeMap<>(CLASS_TRANSFORM_NANOS);
+    }
+
+    @Override
+    public long getMethodsInstrumented() {
+        return METHODS_INSTRUMENTED.sum();
+    }
+
+    @Override
+    public long getMethodsSkipped() {
+        return METHODS_SKIPPED.sum();
+    }
+
+    @Override
+    public Map<String, Integer> getClassSkippedMethods() {
+        return new TreeMap<>(CLASS_SKIPPED_METHODS);
+    }
+
+    @Override
+    public long getFramesPushed() {
+        long total = 0;
+        for (FrameStack fs : FrameStack.getStacks()) {
+            total += fs.getPushedFrames();
+        }
+        return total;
+    }
+
+    @Override
+    public long getFramesPopped() {
+        long total = 0;
+        for (FrameStack fs : FrameStack.getStacks()) {
+            total += fs.getPoppedFrames();
+        }
+        return total;
+    }
+
+    @Override
+    public long getEmbellishments() {
+        long total = 0;
+        for (FrameStack fs : FrameStack.getStacks()) {
+            total += fs.getEmbellishments();
+        }
+        return total;
+    }
+
+    @Override
+    public long getCapturedParameterBytes() {
+        long total = 0;
+        for (FrameStack fs : FrameStack.getStacks()) {
+            total += fs.getCapturedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getHeldParameterBytes() {
+        return CaptureBudgetController.totalHeld();
+    }
+
+    @Override
+    public long getOverflowedFrames() {
+        long total = 0;
+        for (FrameStack fs : FrameStack.getStacks()) {
+            total += fs.getOverflowedFrames();
+        }
+        return total;
+    }
+
+    @Override
+    public boolean isCaptureDegraded() {
+        return FrameStack.getDegradedCapture() != FrameStack.CAPTURE_ALL;
+    }
+
+    @Override
+    public long getReportsWritten() {
+        return ReportSink.getWrittenReports();
+    }
+
+    @Override
+    public long getReportsDropped() {
+        return ReportSink.getDroppedReports();
+    }
+
+    @Override
+    public List<ThreadStackMetrics> getThreadStacks() {
+        List<FrameStack> stacks = FrameStack.getStacks();
+        List<ThreadStackMetrics> metrics = new ArrayList<>(stacks.size());
+        for (FrameStack fs : stacks) {
+            Thread owner = fs.getOwner();
+            if (owner == null) {
+                // a pooled stack waiting to be borrowed
+                continue;
+            }
+            metrics.add(new ThreadStackMetrics(owner.getName(), owner.getId(), fs.getDepth(), fs.getMaxDepth()));
+        }
+        return metrics;
+    }
+
+    @Override
+    public List<ExceptionFingerprintMetrics> getExceptionFingerprints() {
+        List<ExceptionFingerprint> fingerprints = StormGuard.getFingerprints();
+        List<ExceptionFingerprintMetrics> metrics = new ArrayList<>(fingerprints.size());
+        for (ExceptionFingerprint fp : fingerprints) {
+            MethodInfo mi = (fp.getMethodId() >= 0) ? MethodRegistry.get(fp.getMethodId()) : null;
+            String method = (mi == null) ? null : mi.getCls() + '.' + mi.getName();
+            metrics.add(new ExceptionFingerprintMetrics(fp.getReference(), fp.getExceptionClass(), method, fp.getFirstSeen(), fp.getLastSeen(),
+                    fp.getWindowCount(), fp.getTotal(), fp.getSuppressed()));
+        }
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * the metrics the agent exposes over jmx, as com.mebigfatguy.exagent:type=AgentMetrics. Frame counts
+ * are summed over the threads that are still alive, and are read without synchronization, so are approximate.
+ */
+public interface AgentMetricsMXBean {
+
+    long getClassesTransformed();
+
+    long getClassesSkipped();
+
+    long getTransformTimeNanos();
+
+    /**
+     * @return the time spent transforming each class, keyed by class name
+     */
+    Map<String, Long> getClassTransformTimes();
+
+    long getMethodsInstrumented();
+
+    long getMethodsSkipped();
+
+    /**
+     * @return the number of methods of each class that weren't instrumented, as not worth a probe, for the
+     * classes that have any. Classes loaded from the class cache aren't counted.
+     */
+    Map<String, Integer> getClassSkippedMethods();
+
+    long getFramesPushed();
+
+    long getFramesPopped();
+
+    long getEmbellishments();
+
+    long getCapturedParameterBytes();
+
+    /**
+     * @return an estimate of the bytes of parameters currently held by all threads, as checked against the capture budget
+     */
+    long getHeldParameterBytes();
+
+    /**
+     * @return the number of frames overwritten by deeper ones, as stacks exceeded max_captured_frames
+     */
+    long getOverflowedFrames();
+
+    /**
+     * @return whether parameter capture is currently degraded, as the capture budget is exceeded
+     */
+    boolean isCaptureDegraded();
+
+    /**
+     * @return the number of exception reports written to the report log since it was started
+     */
+    long getReportsWritten();
+
+    /**
+     * @return the number of exception reports dropped, as the report log's writer fell behind
+     */
+    long getReportsDropped();
+
+    List<ThreadStackMetrics> getThreadStacks();
+
+    /**
+     * @return the counts of each distinct exception thrown, by type and frames, as tracked while storm_limit is set
+     */
+    List<ExceptionFingerprintMetrics> getExceptionFingerprints();
+}
@@ -0,0 +1,235 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import com.mebigfatguy.exagent.rtsupport.MethodRegistry;
+
+/**
+ * a persistent cache of instrumented class bytes, so that classes need not be rewritten on every jvm start.
+ * Entries are keyed by a hash of the original class bytes, the agent options and the agent version, and
+ * hold the instrumented bytes along with the method infos of the methods that were registered, with a checksum, so that
+ * an entry damaged on disk is just a miss. On a hit,
+ * those methods are registered again, and if they receive different ids than when cached, the ids in the
+ * bytes are remapped, which is still much cheaper than recomputing frames.
+ */
+public class ClassCache {
+
+    /** changed whenever the entry format changes, so older entries are simply misses */
+    private static final int MAGIC = 0xEAC0C0DF;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private File cacheDir;
+    private byte[] keySalt;
+
+    public ClassCache(File dir, String agentArgs) {
+        cacheDir = dir;
+        keySalt = (getAgentVersion() + '\n' + ((agentArgs == null) ? "" : agentArgs)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the instrumented bytes of the class, or null if the class isn't cached, or its entry is damaged
+     */
+    public byte[] load(byte[] classfileBuffer) {
+        File f = getCacheFile(classfileBuffer);
+        if (!f.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (dis.readInt() != MAGIC) {
+                return null;
+            }
+
+            // the body is only trusted if all of it is there, and it is what was written
+            int length = dis.readInt();
+            if ((length < 0) || (length > f.length())) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            long checksum = dis.readLong();
+            dis.readFully(body);
+            if ((dis.read() >= 0) || (checksum(body) != checksum)) {
+                return null;
+            }
+
+            return readBody(new DataInputStream(new ByteArrayInputStream(body)));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readBody(DataInputStream dis) throws IOException {
+        int methodCount = dis.readInt();
+        Map<Integer, Integer> idMap = new HashMap<>(methodCount * 2);
+        boolean sameIds = true;
+        List<MethodInfo> infos = new ArrayList<>(methodCount);
+        List<Integer> oldIds = new ArrayList<>(methodCount);
+        for (int m = 0; m < methodCount; m++) {
+            oldIds.add(dis.readInt());
+            String cls = dis.readUTF();
+            String name = dis.readUTF();
+            int parmCount = dis.readInt();
+            List<String> parmSigs = new ArrayList<>(parmCount);
+            for (int p = 0; p < parmCount; p++) {
+                parmSigs.add(dis.readUTF());
+            }
+            infos.add(new MethodInfo(cls, name, parmSigs));
+        }
+
+        byte[] instrumented = new byte[dis.readInt()];
+        dis.readFully(instrumented);
+
+        for (int m = 0; m < methodCount; m++) {
+            int newId = MethodRegistry.register(infos.get(m));
+            int oldId = oldIds.get(m).intValue();
+            idMap.put(oldId, newId);
+            sameIds &= (oldId == newId);
+        }
+
+        if (sameIds) {
+            return instrumented;
+        }
+
+        ClassReader cr = new ClassReader(instrumented);
+        ClassWriter cw = new ClassWriter(cr, 0);
+        cr.accept(new MethodIdRemapper(cw, idMap), 0);
+        return cw.toByteArray();
+    }
+
+    public void store(byte[] classfileBuffer, byte[] instrumented, List<Integer> methodIds) {
+        File f = getCacheFile(classfileBuffer);
+        f.getParentFile().mkdirs();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(instrumented.length + 1024);
+        try (DataOutputStream dos = new DataOutputStream(body)) {
+            dos.writeInt(methodIds.size());
+            for (Integer id : methodIds) {
+                MethodInfo mi = MethodRegistry.get(id.intValue());
+                dos.writeInt(id.intValue());
+                dos.writeUTF(mi.getCls());
+                dos.writeUTF(mi.getName());
+                dos.writeInt(mi.getParmSignatures().size());
+                for (String sig : mi.getParmSignatures()) {
+                    dos.writeUTF(sig);
+                }
+            }
+            dos.writeInt(instrumented.length);
+            dos.write(instrumented);
+        } catch (IOException e) {
+            return;
+        }
+        byte[] bodyBytes = body.toByteArray();
+
+        // a temporary file of its own, as thread ids are only unique within a jvm, and other jvms may share the cache
+        File tmp;
+        try {
+            tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+        } catch (IOException e) {
+            return;
+        }
+
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(bodyBytes.length);
+            dos.writeLong(checksum(bodyBytes));
+            dos.write(bodyBytes);
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+
+        // rename so that other jvms sharing the cache never see a partial entry
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+        }
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private File getCacheFile(byte[] classfileBuffer) {
+        String key = hash(classfileBuffer);
+        return new File(new File(cacheDir, key.substring(0, 2)), key + ".class");
+    }
+
+    private String hash(byte[] classfileBuffer) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(keySalt);
+            byte[] digest = md.digest(classfileBuffer);
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX[(digest[i] >> 4) & 0x0F];
+                hex[i * 2 + 1] = HEX[digest[i] & 0x0F];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * the released version, or for development builds, the modification time of the agent's jar,
+     * so that a rebuilt agent doesn't use stale entries
+     */
+    private static String getAgentVersion() {
+        String version = ExAgent.class.getPackage().getImplementationVersion();
+        if (version != null) {
+            return version;
+        }
+
+        CodeSource cs = ExAgent.class.getProtectionDomain().getCodeSource();
+        URL location = (cs == null) ? null : cs.getLocation();
+        if ((location != null) && "file".equals(location.getProtocol())) {
+            return "dev-" + new File(location.getPath()).lastModified();
+        }
+        return "dev";
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * decides which classes, and methods, are instrumented. Rules are given as a comma separated list of
+ *
+ * <pre>[+|-]classGlob[#methodGlob][@loaderGlob]</pre>
+ *
+ * where + includes (the default) and - excludes. In the class glob, which may use dots or slashes,
+ * * matches within a package, ** matches across packages and ? matches one character. The method glob
+ * limits the rule to matching methods, and the loader glob to classes defined by a class loader whose
+ * class name matches, the bootstrap loader being named bootstrap. When several rules match, the last one
+ * wins. When none do, the inclusion and exclusion patterns decide, and failing those, a class is only
+ * instrumented if there are no include rules.
+ * <p>
+ * Rules are held in a trie by the literal packages they start with, so only rules that can match a class's
+ * package are tried. When all of those cover whole packages, the decision is made once per package.
+ */
+public class ClassFilter {
+
+    private static final String[] BUILTIN_EXCLUSIONS = { "java/**", "javax/**", "jdk/**", "sun/**", "com/sun/**", "com/mebigfatguy/exagent/**" };
+    private static final String BOOTSTRAP_LOADER_NAME = "bootstrap";
+    private static final String RULE_SEPARATOR = ",";
+
+    private enum Verdict { INCLUDE, EXCLUDE, UNDECIDED }
+
+    private List<Rule> rules = new ArrayList<>();
+    private Node root = new Node();
+    private Pattern inclusionPattern;
+    private Pattern exclusionPattern;
+    private boolean hasIncludeRules;
+    private boolean hasMethodRules;
+    private boolean hasLoaderRules;
+    private Map<String, List<Rule>> packageCandidates = new ConcurrentHashMap<>();
+    private Map<String, Verdict> packageVerdicts = new ConcurrentHashMap<>();
+
+    /**
+     * @param ruleSpecs the comma separated rules, or null for none
+     * @param inclusion the regular expression of class names to instrument when no rule matches, or null
+     * @param exclusion the regular expression of class names not to instrument when no rule matches, or null
+     */
+    public ClassFilter(String ruleSpecs, Pattern inclusion, Pattern exclusion) {
+        inclusionPattern = inclusion;
+        exclusionPattern = exclusion;
+
+        if (ruleSpecs != null) {
+            for (String spec : ruleSpecs.split(RULE_SEPARATOR)) {
+                try {
+                    spec = spec.trim();
+                    if (!spec.isEmpty()) {
+                        addRule(spec);
+                    }
+                } catch (Exception e) {
+                    // swallow it
+                }
+            }
+        }
+        // the agent and the jdk can never be instrumented, whatever the rules say
+        for (String builtin : BUILTIN_EXCLUSIONS) {
+            addRule('-' + builtin);
+        }
+    }
+
+    /**
+     * @param loader the class's defining loader, or null for the bootstrap loader
+     * @param className the slashed name of the class
+     * @return whether any of the class's methods are to be instrumented
+     */
+    public boolean instrumentClass(ClassLoader loader, String className) {
+        if (className == null) {
+            return false;
+        }
+
+        String loaderName = loaderName(loader);
+        String pkg = packageOf(className);
+        String key = hasLoaderRules ? loaderName + '!' + pkg : pkg;
+        Verdict verdict = packageVerdicts.get(key);
+        if (verdict == null) {
+            List<Rule> candidates = candidates(pkg);
+            if (isPackageWide(candidates, loaderName)) {
+                verdict = classVerdict(candidates, loaderName, pkg, true);
+                packageVerdicts.put(key, verdict);
+            } else {
+                verdict = classVerdict(candidates, loaderName, className, false);
+            }
+        }
+
+        return (verdict == Verdict.UNDECIDED) ? defaultVerdict(className) : (verdict == Verdict.INCLUDE);
+    }
+
+    /**
+     * @return whether the method of a class that is instrumented gets a probe
+     */
+    public boolean instrumentMethod(ClassLoader loader, String className, String methodName) {
+        if (!hasMethodRules) {
+            return true;
+        }
+
+        String loaderName = loaderName(loader);
+        List<Rule> candidates = candidates(packageOf(className));
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            Rule rule = candidates.get(i);
+            if (rule.appliesTo(loaderName) && rule.classPattern.matcher(className).matches()
+            && ((rule.methodPattern == null) || rule.methodPattern.matcher(methodName).matches())) {
+                return rule.include;
+            }
+        }
+        return defaultVerdict(className);
+    }
+
+    /**
+     * @return whether any rule is limited to some methods, in which case {@link #instrumentMethod} needs consulting
+     */
+    public boolean hasMethodRules() {
+        return hasMethodRules;
+    }
+
+    /**
+     * @return whether the methods instrumented in a class depend on its class loader, so that the same class
+     * bytes may be instrumented differently
+     */
+    public boolean isLoaderDependent() {
+        return hasMethodRules && hasLoaderRules;
+    }
+
+    private void addRule(String spec) {
+        Rule rule = new Rule(rules.size(), spec);
+        rules.add(rule);
+        hasIncludeRules |= rule.include;
+        hasMethodRules |= (rule.methodPattern != null);
+        hasLoaderRules |= (rule.loaderPattern != null);
+
+        Node node = root;
+        String[] segments = rule.classGlob.split("/");
+        // the last segment is the class name, only literal packages go in the trie
+        for (int s = 0; (s < segments.length - 1) && !isWild(segments[s]); s++) {
+            Node child = node.children.get(segments[s]);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segments[s], child);
+            }
+            node = child;
+        }
+        node.rules.add(rule);
+    }
+
+    /**
+     * @return the rules that may match classes of the package, in the order given
+     */
+    private List<Rule> candidates(String pkg) {
+        List<Rule> candidates = packageCandidates.get(pkg);
+        if (candidates != null) {
+            return candidates;
+        }
+
+        candidates = new ArrayList<>(root.rules);
+        if (!pkg.isEmpty()) {
+            Node node = root;
+            for (String segment : pkg.split("/")) {
+                node = node.children.get(segment);
+                if (node == null) {
+                    break;
+                }
+                candidates.addAll(node.rules);
+            }
+        }
+        Collections.sort(candidates, (r1, r2) -> Integer.compare(r1.index, r2.index));
+        packageCandidates.put(pkg, candidates);
+        return candidates;
+    }
+
+    private static boolean isPackageWide(List<Rule> candidates, String loaderName) {
+        for (Rule rule : candidates) {
+            if (rule.appliesTo(loaderName) && (rule.packagePattern == null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * finds the last rule matching the class, or its package when all the candidates are package wide.
+     * An include rule limited to some methods includes the class, but an exclude one doesn't exclude it.
+     */
+    private Verdict classVerdict(List<Rule> candidates, String loaderName, String name, boolean byPackage) {
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            Rule rule = candidates.get(i);
+            if (!rule.appliesTo(loaderName)) {
+                continue;
+            }
+            Pattern p = byPackage ? rule.packagePattern : rule.classPattern;
+            if (!p.matcher(name).matches()) {
+                continue;
+            }
+            if (rule.methodPattern == null) {
+                return rule.include ? Verdict.INCLUDE : Verdict.EXCLUDE;
+            }
+            if (rule.include) {
+                return Verdict.INCLUDE;
+            }
+        }
+        return Verdict.UNDECIDED;
+    }
+
+    private boolean defaultVerdict(String className) {
+        if (inclusionPattern != null) {
+            return inclusionPattern.matcher(className).matches();
+        }
+        if (exclusionPattern != null) {
+            return !exclusionPattern.matcher(className).matches();
+        }
+        return !hasIncludeRules;
+    }
+
+    private static String loaderName(ClassLoader loader) {
+        return (loader == null) ? BOOTSTRAP_LOADER_NAME : loader.getClass().getName();
+    }
+
+    private static String packageOf(String className) {
+        int slashPos = className.lastIndexOf('/');
+        return (slashPos < 0) ? "" : className.substring(0, slashPos);
+    }
+
+    private static boolean isWild(String glob) {
+        return (glob.indexOf('*') >= 0) || (glob.indexOf('?') >= 0);
+    }
+
+    /**
+     * converts a glob to a regular expression, where, in a segmented glob, * and ? don't match slashes
+     */
+    static String globToRegex(String glob, boolean segmented) {
+        StringBuilder regex = new StringBuilder(glob.length() * 2);
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (segmented && ((i + 1) < glob.length()) && (glob.charAt(i + 1) == '*')) {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append(segmented ? "[^/]*" : ".*");
+                }
+            } else if (c == '?') {
+                regex.append(segmented ? "[^/]" : ".");
+            } else if (Character.isLetterOrDigit(c) || (c == '/') || (c == '_')) {
+                regex.append(c);
+            } else {
+                regex.append('\\').append(c);
+            }
+        }
+        return regex.toString();
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+
+    static class Node {
+        Map<String, Node> children = new HashMap<>();
+        List<Rule> rules = new ArrayList<>();
+
+        @Override
+        public String toString() {
+            return ToString.build(this);
+        }
+    }
+
+    static class Rule {
+        int index;
+        boolean include = true;
+        String classGlob;
+        Pattern classPattern;
+        /** when the rule covers whole packages, matches the packages, otherwise null */
+        Pattern packagePattern;
+        Pattern methodPattern;
+        Pattern loaderPattern;
+
+        Rule(int ruleIndex, String spec) {
+            index = ruleIndex;
+
+            char sign = spec.charAt(0);
+            if ((sign == '+') || (sign == '-')) {
+                include = sign == '+';
+                spec = spec.substring(1);
+            }
+
+            int atPos = spec.lastIndexOf('@');
+            if (atPos >= 0) {
+                loaderPattern = Pattern.compile(globToRegex(spec.substring(atPos + 1).trim(), false));
+                spec = spec.substring(0, atPos);
+            }
+
+            int hashPos = spec.indexOf('#');
+            if (hashPos >= 0) {
+                methodPattern = Pattern.compile(globToRegex(spec.substring(hashPos + 1).trim(), false));
+                spec = spec.substring(0, hashPos);
+            }
+
+            classGlob = spec.trim().replace('.', '/');
+            classPattern = Pattern.compile(globToRegex(classGlob, true));
+
+            int slashPos = classGlob.lastIndexOf('/');
+            String classPart = classGlob.substring(slashPos + 1);
+            String packageRegex = (slashPos < 0) ? "" : globToRegex(classGlob.substring(0, slashPos), true);
+            if ("**".equals(classPart)) {
+                packagePattern = Pattern.compile((slashPos < 0) ? ".*" : packageRegex + "(/.*)?");
+            } else if ("*".equals(classPart)) {
+                packagePattern = Pattern.compile(packageRegex);
+            }
+        }
+
+        boolean appliesTo(String loaderName) {
+            return (loaderPattern == null) || loaderPattern.matcher(loaderName).matches();
+        }
+
+        @Override
+        public String toString() {
+            return ToString.build(this);
+        }
+    }
+}
@@ -18,14 +18,168 @@
 package com.mebigfatguy.exagent;
 
 import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mebigfatguy.exagent.rtsupport.CaptureBudgetController;
+import com.mebigfatguy.exagent.rtsupport.EXASupport;
+import com.mebigfatguy.exagent.rtsupport.FrameStack;
+import com.mebigfatguy.exagent.rtsupport.JfrSink;
+import com.mebigfatguy.exagent.rtsupport.ReportSink;
+import com.mebigfatguy.exagent.rtsupport.SamplingController;
+import com.mebigfatguy.exagent.rtsupport.StormGuard;
 
 public class ExAgent {
     
+    private static final int RETRANSFORM_BATCH_SIZE = 100;
+    
+    /** the system property holding the options of classes instrumented ahead of time, when no agent is attached */
+    public static final String OFFLINE_OPTIONS_PROPERTY = "exagent.options";
+    
+    private static StackTraceTransformer installedTransformer;
+    private static boolean runtimeConfigured;
+    
     public static void premain(String agentArguments, Instrumentation instrumentation) {
+        install(new Options(agentArguments), instrumentation, false);
+    }
+    
+    /**
+     * called when the agent is attached to a running vm. Classes already loaded that match the options are
+     * retransformed, so that they are instrumented from then on. Attaching again with enabled=false removes
+     * the instrumentation, retransforming those classes back to their original bytecode.
+     */
+    public static void agentmain(String agentArguments, Instrumentation instrumentation) {
         Options options = new Options(agentArguments);
+        if (options.isEnabled()) {
+            install(options, instrumentation, true);
+        } else {
+            uninstall(instrumentation);
+        }
+    }
+    
+    private static synchronized void install(Options options, Instrumentation instrumentation, boolean retransformLoaded) {
+        uninstall(instrumentation);
+        
+        StackTraceTransformer mutator = configure(options);
+        if (options.isJmxEnabled()) {
+            AgentMetrics.register();
+        }
+        boolean canRetransform = instrumentation.isRetransformClassesSupported();
+        instrumentation.addTransformer(mutator, canRetransform);
+        installedTransformer = mutator;
+        
+        if (retransformLoaded && canRetransform) {
+            retransform(instrumentation, mutator);
+        }
+        if (options.isAdaptive() && canRetransform) {
+            AdaptiveInstrumenter.start(instrumentation, mutator);
+        }
+    }
+    
+    private static synchronized void uninstall(Instrumentation instrumentation) {
+        if (installedTransformer == null) {
+            return;
+        }
         
-        StackTraceTransformer mutator = new StackTraceTransformer(options);
-        instrumentation.addTransformer(mutator);
+        StackTraceTransformer mutator = installedTransformer;
+        installedTransformer = null;
+        instrumentation.removeTransformer(mutator);
+        AdaptiveInstrumenter.stop();
+        SamplingController.stop();
+        CaptureBudgetController.stop();
+        ReportSink.stop();
+        
+        if (instrumentation.isRetransformClassesSupported()) {
+            // with the transformer gone, retransforming restores the original bytes
+            retransform(instrumentation, mutator);
+        }
+    }
+    
+    /**
+     * retransforms the loaded classes the transformer applies to, in batches, falling back to one class
+     * at a time when a batch fails, so that one bad class doesn't stop the rest
+     */
+    private static void retransform(Instrumentation instrumentation, StackTraceTransformer mutator) {
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+            if (instrumentation.isModifiableClass(c) && mutator.isInstrumentable(c.getClassLoader(), c.getName().replace('.', '/'))) {
+                classes.add(c);
+            }
+        }
+        
+        retransform(instrumentation, classes);
+    }
+    
+    static void retransform(Instrumentation instrumentation, List<Class<?>> classes) {
+        for (int start = 0; start < classes.size(); start += RETRANSFORM_BATCH_SIZE) {
+            List<Class<?>> batch = classes.subList(start, Math.min(classes.size(), start + RETRANSFORM_BATCH_SIZE));
+            try {
+                instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+            } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+                for (Class<?> c : batch) {
+                    try {
+                        instrumentation.retransformClasses(c);
+                    } catch (UnmodifiableClassException | RuntimeException | LinkageError e2) {
+                        // swallow it, the class keeps its current bytecode
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * applies the options to the runtime support classes, and creates the transformer to install. This is
+     * also used by tools that instrument classes without going through the instrumentation api.
+     */
+    public static StackTraceTransformer configure(Options options) {
+        configureRuntime(options);
+        return new StackTraceTransformer(options);
+    }
+    
+    /**
+     * called as the first class instrumented ahead of time is initialized, to apply the options given by the
+     * exagent.options system property, unless the agent has already been configured by attaching it. As nothing
+     * else would show that messages can't be embellished, that is reported once, here.
+     */
+    public static synchronized void configureOffline() {
+        if (!runtimeConfigured) {
+            Options options = new Options(System.getProperty(OFFLINE_OPTIONS_PROPERTY));
+            configureRuntime(options);
+            if (options.isEmbellish() && !EXASupport.isMessageWritable()) {
+                System.err.println("exagent: Throwable.detailMessage is not accessible, so exception messages are not embellished;"
+                        + " run with --add-opens java.base/java.lang=ALL-UNNAMED");
+            }
+        }
+    }
+    
+    private static synchronized void configureRuntime(Options options) {
+        runtimeConfigured = true;
+        EXASupport.setParmSizeLimit(options.getParmSizeLimit());
+        EXASupport.setMaxFrames(options.getMaxFrames());
+        EXASupport.setMaxMessageSize(options.getMaxMessageSize());
+        EXASupport.setIndexedLookup(options.isIndexedThreadState());
+        EXASupport.setPooledLookup(options.isPooledThreadState());
+        EXASupport.setEmbellish(options.isEmbellish());
+        JfrSink.setEnabled(options.isJfr());
+        StormGuard.configure(options.getStormLimit(), options.getStormWindow());
+        FrameStack.setSampling(options.getSampleRate(), options.isRandomSampling());
+        FrameStack.setFrameLimit(options.getMaxCapturedFrames());
+        if (options.getCaptureBudget() > 0) {
+            CaptureBudgetController.start(options.getCaptureBudget(), options.isPrimitivesBudgetPolicy() ? FrameStack.CAPTURE_PRIMITIVES : FrameStack.CAPTURE_IDENTITY);
+        } else {
+            CaptureBudgetController.stop();
+        }
+        if (options.getSampleBudget() > 0) {
+            SamplingController.start(options.getSampleBudget(), options.getSampleRate(), options.isRandomSampling());
+        } else {
+            SamplingController.stop();
+        }
+        if (options.getReportDir() != null) {
+            ReportSink.start(options.getReportDir(), options.getReportFileSize(), options.getReportFiles(), options.getMaxFrames());
+        } else {
+            ReportSink.stop();
+        }
     }
     
     @Override
@@ -0,0 +1,93 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+/**
+ * the occurrences of one exception fingerprint, that is an exception type thrown from one sequence of frames
+ */
+public class ExceptionFingerprintMetrics {
+
+    private String reference;
+    private String exceptionClass;
+    private String method;
+    private long firstSeen;
+    private long lastSeen;
+    private int windowCount;
+    private long total;
+    private long suppressed;
+
+    public ExceptionFingerprintMetrics(String reference, String exceptionClass, String method, long firstSeen, long lastSeen, int windowCount, long total, long suppressed) {
+        this.reference = reference;
+        this.exceptionClass = exceptionClass;
+        this.method = method;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+        this.windowCount = windowCount;
+        this.total = total;
+        this.suppressed = suppressed;
+    }
+
+    /**
+     * @return the reference added to the messages of the fingerprint's exceptions
+     */
+    public String getReference() {
+        return reference;
+    }
+
+    public String getExceptionClass() {
+        return exceptionClass;
+    }
+
+    /**
+     * @return the innermost method the exception was thrown from, or null if no frames were captured
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return the number of occurrences in the current storm window
+     */
+    public int getWindowCount() {
+        return windowCount;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the number of occurrences whose messages were abbreviated
+     */
+    public long getSuppressed() {
+        return suppressed;
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * a ClassWriter that finds common super classes by reading class files through the class loader,
+ * rather than loading the classes, as ASM does by default. Loading classes in the middle of a
+ * transformation is slow, contends with parallel class loading, and can load classes early.
+ */
+public class HierarchyClassWriter extends ClassWriter {
+
+    private static final String OBJECT_CLASS_NAME = "java/lang/Object";
+
+    private ClassLoader loader;
+    private Map<String, ClassReader> readClasses = new HashMap<>();
+
+    public HierarchyClassWriter(ClassReader cr, int flags, ClassLoader classLoader) {
+        super(cr, flags);
+        loader = classLoader;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+
+        try {
+            Set<String> supers1 = new HashSet<>();
+            String cls = type1;
+            while (cls != null) {
+                ClassReader cr = readClass(cls);
+                if ((cr.getAccess() & Opcodes.ACC_INTERFACE) != 0) {
+                    return OBJECT_CLASS_NAME;
+                }
+                supers1.add(cls);
+                cls = cr.getSuperName();
+            }
+
+            cls = type2;
+            while (cls != null) {
+                if (supers1.contains(cls)) {
+                    return cls;
+                }
+                ClassReader cr = readClass(cls);
+                if ((cr.getAccess() & Opcodes.ACC_INTERFACE) != 0) {
+                    return OBJECT_CLASS_NAME;
+                }
+                cls = cr.getSuperName();
+            }
+            return OBJECT_CLASS_NAME;
+        } catch (IOException e) {
+            return super.getCommonSuperClass(type1, type2);
+        }
+    }
+
+    private ClassReader readClass(String clsName) throws IOException {
+        ClassReader cr = readClasses.get(clsName);
+        if (cr != null) {
+            return cr;
+        }
+        
+        String resource = clsName + ".class";
+        InputStream is = (loader != null) ? loader.getResourceAsStream(resource) : ClassLoader.getSystemResourceAsStream(resource);
+        if (is == null) {
+            throw new IOException("Class file for " + clsName + " not found");
+        }
+
+        try (InputStream cis = is) {
+            cr = new ClassReader(cis);
+            readClasses.put(clsName, cr);
+            return cr;
+        }
+    }
+
+    @Override
+    protected ClassLoader getClassLoader() {
+        return (loader != null) ? loader : super.getClassLoader();
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+}
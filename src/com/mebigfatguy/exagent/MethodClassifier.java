@@ -0,0 +1,185 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * a pre-pass over a class that finds the methods not worth a probe. A method that neither calls out nor
+ * throws can't be on the stack when an exception is embellished, other than as the frame the exception
+ * was raised in implicitly, such as trivial getters and setters. Bridges and synthetic accessors just
+ * forward to a method that is itself instrumented. Optionally, methods with fewer instructions than the
+ * min_method_size are skipped too, trading their frames for less overhead in the smallest, hottest methods,
+ * as are methods excluded by the method rules of the class filter.
+ */
+public class MethodClassifier extends ClassVisitor {
+
+    private Options options;
+    private ClassLoader loader;
+    private String clsName;
+    private Set<String> skippedMethods = new HashSet<>();
+
+    private MethodClassifier(Options options, ClassLoader loader) {
+        super(Opcodes.ASM9);
+        this.options = options;
+        this.loader = loader;
+    }
+
+    /**
+     * @return the name and descriptor of the methods to leave uninstrumented, as built by {@link #methodKey}
+     */
+    public static Set<String> findSkippedMethods(ClassReader cr, Options options, ClassLoader loader) {
+        MethodClassifier classifier = new MethodClassifier(options, loader);
+        if (options.isSkipTrivial() || (options.getMinMethodSize() > 0) || options.getClassFilter().hasMethodRules()) {
+            cr.accept(classifier, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        }
+        return classifier.skippedMethods;
+    }
+
+    public static String methodKey(String name, String desc) {
+        return name + desc;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        clsName = name;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        if (!options.getClassFilter().instrumentMethod(loader, clsName, name)) {
+            skippedMethods.add(methodKey(name, desc));
+            return null;
+        }
+        if (options.isSkipTrivial()) {
+            if (((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_BRIDGE)) != 0)
+            || (((access & Opcodes.ACC_SYNTHETIC) != 0) && !name.startsWith("lambda$"))) {
+                skippedMethods.add(methodKey(name, desc));
+                return null;
+            }
+        }
+        return new ClassifyingMethodVisitor(methodKey(name, desc));
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+
+    class ClassifyingMethodVisitor extends MethodVisitor {
+
+        private String key;
+        private int instructions;
+        private boolean callsOut;
+
+        ClassifyingMethodVisitor(String methodKey) {
+            super(Opcodes.ASM9);
+            key = methodKey;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            instructions++;
+            if (opcode == Opcodes.ATHROW) {
+                callsOut = true;
+            }
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            instructions++;
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            instructions++;
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            instructions++;
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            instructions++;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            instructions++;
+            callsOut = true;
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            instructions++;
+            callsOut = true;
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            instructions++;
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            instructions++;
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            instructions++;
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            instructions++;
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            instructions++;
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            instructions++;
+        }
+
+        @Override
+        public void visitEnd() {
+            if ((options.isSkipTrivial() && !callsOut) || (instructions < options.getMinMethodSize())) {
+                skippedMethods.add(key);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return ToString.build(this);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import com.mebigfatguy.exagent.rtsupport.EXASupport;
+import com.mebigfatguy.exagent.rtsupport.MethodRegistry;
+
+/**
+ * binds the method ids of a class instrumented ahead of time to the jvm it runs in. The ids the probes pass
+ * were assigned by the instrumenting tool, so each is replaced by the index of the method within the class,
+ * added to a base id that the class's static initializer gets by registering the class's methods with the
+ * {@link MethodRegistry}. The id is the first int constant pushed after the probe's call to EXASupport.getFrameStack,
+ * as with the {@link MethodIdRemapper}.
+ */
+public class MethodIdBinder extends ClassVisitor {
+
+    /** the static field of a bound class holding the id of its first method */
+    public static final String BASE_ID_FIELD_NAME = "__exagent_base_id";
+
+    private static final String EXASUPPORT_CLASS_NAME = EXASupport.class.getName().replace('.', '/');
+    private static final String METHOD_REGISTRY_CLASS_NAME = MethodRegistry.class.getName().replace('.', '/');
+    private static final String CLINIT_NAME = "<clinit>";
+
+    private String clsName;
+    private boolean isInterface;
+    private boolean sawStaticInitializer;
+    private Map<Integer, Integer> idToIndex;
+    private List<MethodInfo> methodInfos;
+
+    /**
+     * @param oldIdToIndex the index, within methodInfos, of each id assigned by the tool
+     * @param methodInfos the instrumented methods of the class
+     */
+    public MethodIdBinder(ClassVisitor cv, Map<Integer, Integer> oldIdToIndex, List<MethodInfo> methodInfos) {
+        super(Opcodes.ASM9, cv);
+        idToIndex = oldIdToIndex;
+        this.methodInfos = methodInfos;
+    }
+
+    /**
+     * @return whether the class has already been instrumented ahead of time, and so must not be instrumented again
+     */
+    public static boolean isBound(ClassReader cr) {
+        final boolean[] bound = new boolean[1];
+        cr.accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                bound[0] |= BASE_ID_FIELD_NAME.equals(name);
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return bound[0];
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        clsName = name;
+        isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+        if (CLINIT_NAME.equals(name)) {
+            sawStaticInitializer = true;
+            return new BindingMethodVisitor(mv, true);
+        }
+        return new BindingMethodVisitor(mv, false);
+    }
+
+    /**
+     * adds the base id field, and a static initializer to set it, if the class didn't have one
+     */
+    @Override
+    public void visitEnd() {
+        // interface fields must be public, a class's is kept out of sight
+        int access = Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC | (isInterface ? Opcodes.ACC_PUBLIC : Opcodes.ACC_PRIVATE);
+        FieldVisitor fv = super.visitField(access, BASE_ID_FIELD_NAME, "I", null, null);
+        if (fv != null) {
+            fv.visitEnd();
+        }
+
+        if (!sawStaticInitializer) {
+            MethodVisitor mv = super.visitMethod(Opcodes.ACC_STATIC, CLINIT_NAME, "()V", null, null);
+            mv.visitCode();
+            injectRegistration(mv);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        super.visitEnd();
+    }
+
+    /**
+     * registers the class's methods, storing the first id in the base id field. The encoding of each method is
+     * the one {@link MethodRegistry#registerClass(String, String[])} expects.
+     */
+    private void injectRegistration(MethodVisitor mv) {
+        mv.visitLdcInsn(clsName);
+        StackTraceMethodVisitor.injectIntConstant(mv, methodInfos.size());
+        mv.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/String");
+        for (int m = 0; m < methodInfos.size(); m++) {
+            MethodInfo mi = methodInfos.get(m);
+            StringBuilder encoded = new StringBuilder(mi.getName());
+            for (String sig : mi.getParmSignatures()) {
+                encoded.append('\t').append(sig);
+            }
+            mv.visitInsn(Opcodes.DUP);
+            StackTraceMethodVisitor.injectIntConstant(mv, m);
+            mv.visitLdcInsn(encoded.toString());
+            mv.visitInsn(Opcodes.AASTORE);
+        }
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, METHOD_REGISTRY_CLASS_NAME, "registerClass", "(Ljava/lang/String;[Ljava/lang/String;)I", false);
+        mv.visitFieldInsn(Opcodes.PUTSTATIC, clsName, BASE_ID_FIELD_NAME, "I");
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+
+    class BindingMethodVisitor extends MethodVisitor {
+
+        private boolean isStaticInitializer;
+        private boolean awaitingId;
+
+        public BindingMethodVisitor(MethodVisitor mv, boolean staticInitializer) {
+            super(Opcodes.ASM9, mv);
+            isStaticInitializer = staticInitializer;
+        }
+
+        /**
+         * the registration goes ahead of everything, including the initializer's own probe, so that the
+         * class's methods, which may be called while it is initialized, always have their ids
+         */
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            if (isStaticInitializer) {
+                injectRegistration(mv);
+            }
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+            awaitingId = (opcode == Opcodes.INVOKESTATIC) && EXASUPPORT_CLASS_NAME.equals(owner) && "getFrameStack".equals(name);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (awaitingId && (opcode >= Opcodes.ICONST_M1) && (opcode <= Opcodes.ICONST_5)) {
+                bind(opcode - Opcodes.ICONST_0);
+            } else {
+                super.visitInsn(opcode);
+            }
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            if (awaitingId && (opcode != Opcodes.NEWARRAY)) {
+                bind(operand);
+            } else {
+                super.visitIntInsn(opcode, operand);
+            }
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            if (awaitingId && (cst instanceof Integer)) {
+                bind(((Integer) cst).intValue());
+            } else {
+                super.visitLdcInsn(cst);
+            }
+        }
+
+        private void bind(int oldId) {
+            awaitingId = false;
+            Integer index = idToIndex.get(oldId);
+            if (index == null) {
+                StackTraceMethodVisitor.injectIntConstant(mv, oldId);
+                return;
+            }
+            super.visitFieldInsn(Opcodes.GETSTATIC, clsName, BASE_ID_FIELD_NAME, "I");
+            StackTraceMethodVisitor.injectIntConstant(mv, index.intValue());
+            super.visitInsn(Opcodes.IADD);
+        }
+    }
+}
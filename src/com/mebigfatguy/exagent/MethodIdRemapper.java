@@ -0,0 +1,101 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.util.Map;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import com.mebigfatguy.exagent.rtsupport.EXASupport;
+
+/**
+ * rewrites the method ids baked into already instrumented classes, as when they are loaded from the
+ * class cache, where the ids were assigned by a previous jvm. The id is the first int constant pushed
+ * after the probe's call to EXASupport.getFrameStack.
+ */
+public class MethodIdRemapper extends ClassVisitor {
+
+    private static String EXASUPPORT_CLASS_NAME = EXASupport.class.getName().replace('.', '/');
+
+    private Map<Integer, Integer> idMap;
+
+    public MethodIdRemapper(ClassVisitor cv, Map<Integer, Integer> oldToNewIds) {
+        super(Opcodes.ASM9, cv);
+        idMap = oldToNewIds;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        return new RemappingMethodVisitor(super.visitMethod(access, name, desc, signature, exceptions));
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+
+    class RemappingMethodVisitor extends MethodVisitor {
+
+        private boolean awaitingId;
+
+        public RemappingMethodVisitor(MethodVisitor mv) {
+            super(Opcodes.ASM9, mv);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+            awaitingId = (opcode == Opcodes.INVOKESTATIC) && EXASUPPORT_CLASS_NAME.equals(owner) && "getFrameStack".equals(name);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (awaitingId && (opcode >= Opcodes.ICONST_M1) && (opcode <= Opcodes.ICONST_5)) {
+                remap(opcode - Opcodes.ICONST_0);
+            } else {
+                super.visitInsn(opcode);
+            }
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            if (awaitingId && (opcode != Opcodes.NEWARRAY)) {
+                remap(operand);
+            } else {
+                super.visitIntInsn(opcode, operand);
+            }
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            if (awaitingId && (cst instanceof Integer)) {
+                remap(((Integer) cst).intValue());
+            } else {
+                super.visitLdcInsn(cst);
+            }
+        }
+
+        private void remap(int oldId) {
+            awaitingId = false;
+            Integer newId = idMap.get(oldId);
+            StackTraceMethodVisitor.injectIntConstant(mv, (newId == null) ? oldId : newId.intValue());
+        }
+    }
+}
@@ -23,12 +23,19 @@ public class MethodInfo {
 
     private String clsName;
     private String methodName;
-    private List<String> parms;
+    private List<String> parmSignatures;
     
-    public MethodInfo(String cls, String name, List<String> parms) {
+    /**
+     * describes an instrumented method, and is created once per method at transform time
+     * 
+     * @param cls the slashed class name
+     * @param name the method name
+     * @param parmSignatures the type signature of each parameter, in order
+     */
+    public MethodInfo(String cls, String name, List<String> parmSignatures) {
         this.clsName = cls;
         this.methodName = name;
-        this.parms = parms;
+        this.parmSignatures = parmSignatures;
     }
 
     public String getCls() {
@@ -39,10 +46,27 @@ public class MethodInfo {
         return methodName;
     }
 
-    public List<String> getParms() {
-        return parms;
+    public List<String> getParmSignatures() {
+        return parmSignatures;
     }
     
+    @Override
+    public int hashCode() {
+        return (((clsName.hashCode() * 31) + methodName.hashCode()) * 31) + parmSignatures.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MethodInfo)) {
+            return false;
+        }
+        MethodInfo that = (MethodInfo) o;
+        return clsName.equals(that.clsName) && methodName.equals(that.methodName) && parmSignatures.equals(that.parmSignatures);
+    }
+
     @Override
     public String toString() {
         return ToString.build(this);
@@ -0,0 +1,379 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import com.mebigfatguy.exagent.rtsupport.MethodRegistry;
+
+/**
+ * instruments the classes of jars or class directories ahead of time, so that the application pays no
+ * transformation cost as it starts. Classes are rewritten by the same pipeline the agent uses, in parallel,
+ * and then have their method ids bound by a {@link MethodIdBinder}, so that they run with just exagent on the
+ * class path, without attaching the agent. Run it as
+ *
+ *     java -cp exagent.jar com.mebigfatguy.exagent.OfflineInstrumenter [-options agent_options] [-classpath path] [-threads n] input output
+ *
+ * where input and output are both jars, or both directories, and may be the same.
+ */
+public class OfflineInstrumenter {
+
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String SIGNATURE_DIR = "META-INF/";
+    private static final String[] SIGNATURE_SUFFIXES = { ".SF", ".RSA", ".DSA", ".EC" };
+    /** the entries below which a task instruments them itself, rather than splitting them */
+    private static final int TASK_THRESHOLD = 16;
+
+    private Options options;
+    private List<File> classpath;
+    private int parallelism;
+
+    /**
+     * @param options the options, as given to the agent, that decide what is instrumented, and how
+     * @param classpath the jars and directories the instrumented classes' super classes may be found in,
+     *                  beyond the input itself
+     * @param parallelism the number of classes to instrument at once
+     */
+    public OfflineInstrumenter(Options options, List<File> classpath, int parallelism) {
+        this.options = options;
+        this.classpath = classpath;
+        this.parallelism = parallelism;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String agentArgs = null;
+        List<File> classpath = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int a = 0;
+        try {
+            for (; (a < args.length) && args[a].startsWith("-"); a += 2) {
+                switch (args[a]) {
+                    case "-options":
+                        agentArgs = args[a + 1];
+                    break;
+
+                    case "-classpath":
+                        for (String path : args[a + 1].split(File.pathSeparator)) {
+                            classpath.add(new File(path));
+                        }
+                    break;
+
+                    case "-threads":
+                        threads = Integer.parseInt(args[a + 1]);
+                    break;
+
+                    default:
+                        a = args.length;
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            a = args.length;
+        }
+
+        if ((args.length - a) != 2) {
+            System.err.println("usage: java -cp exagent.jar " + OfflineInstrumenter.class.getName() + " [-options agent_options] [-classpath path] [-threads n] input output");
+            System.exit(1);
+        }
+
+        OfflineInstrumenter instrumenter = new OfflineInstrumenter(new Options(agentArgs), classpath, threads);
+        int count = instrumenter.instrument(new File(args[a]), new File(args[a + 1]));
+        System.out.println("Instrumented " + count + " classes of " + args[a]);
+    }
+
+    /**
+     * instruments the classes of a jar or directory, copying the rest of its contents as is, other than jar
+     * signatures, which the instrumented classes would no longer match
+     *
+     * @return the number of classes instrumented
+     */
+    public int instrument(File input, File output) throws IOException {
+        List<Entry> entries = input.isDirectory() ? readDirectory(input) : readJar(input);
+
+        List<URL> urls = new ArrayList<>();
+        urls.add(toURL(input));
+        for (File f : classpath) {
+            urls.add(toURL(f));
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        // a null parent, so that super classes are only found in the jdk and the given paths, not in the tool's own
+        try (URLClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]), null)) {
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+            try {
+                pool.invoke(new InstrumentTask(entries, 0, entries.size(), loader, count));
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        if (input.isDirectory()) {
+            writeDirectory(entries, input, output);
+        } else {
+            writeJar(entries, input, output);
+        }
+        return count.get();
+    }
+
+    /**
+     * @return the instrumented bytes of the class, or null if it is not to be instrumented
+     */
+    byte[] instrumentClass(ClassLoader loader, byte[] classBytes) {
+        ClassReader cr = new ClassReader(classBytes);
+        String className = cr.getClassName();
+        if (((cr.getAccess() & Opcodes.ACC_MODULE) != 0) || !options.getClassFilter().instrumentClass(loader, className) || MethodIdBinder.isBound(cr)) {
+            return null;
+        }
+
+        int flags = options.isComputeFrames() ? ClassWriter.COMPUTE_MAXS|ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
+        ClassWriter cw = new HierarchyClassWriter(cr, flags, loader);
+        StackTraceClassVisitor stackTraceVisitor = new StackTraceClassVisitor(cw, options, MethodClassifier.findSkippedMethods(cr, options, loader));
+        cr.accept(stackTraceVisitor, ClassReader.EXPAND_FRAMES);
+
+        List<Integer> methodIds = stackTraceVisitor.getMethodIds();
+        if (methodIds.isEmpty()) {
+            return null;
+        }
+
+        Map<Integer, Integer> idToIndex = new HashMap<>(methodIds.size() * 2);
+        List<MethodInfo> methodInfos = new ArrayList<>(methodIds.size());
+        for (Integer id : methodIds) {
+            // methods that render the same, such as a bridge and its target, share an id
+            if (!idToIndex.containsKey(id)) {
+                idToIndex.put(id, methodInfos.size());
+                methodInfos.add(MethodRegistry.get(id.intValue()));
+            }
+        }
+
+        // binding adds to the stack, but not to the frames
+        ClassReader instrumented = new ClassReader(cw.toByteArray());
+        ClassWriter bw = new ClassWriter(instrumented, ClassWriter.COMPUTE_MAXS);
+        instrumented.accept(new MethodIdBinder(bw, idToIndex, methodInfos), 0);
+        return bw.toByteArray();
+    }
+
+    private static List<Entry> readJar(File jar) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (JarFile jf = new JarFile(jar)) {
+            Enumeration<JarEntry> jarEntries = jf.entries();
+            while (jarEntries.hasMoreElements()) {
+                JarEntry je = jarEntries.nextElement();
+                if (isSignature(je.getName())) {
+                    continue;
+                }
+                byte[] bytes = null;
+                if (!je.isDirectory()) {
+                    try (InputStream is = jf.getInputStream(je)) {
+                        bytes = readFully(is);
+                    }
+                }
+                entries.add(new Entry(je.getName(), je.getTime(), bytes));
+            }
+        }
+        return entries;
+    }
+
+    private static List<Entry> readDirectory(File dir) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        readDirectory(dir, "", entries);
+        return entries;
+    }
+
+    private static void readDirectory(File dir, String prefix, List<Entry> entries) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String name = prefix + child.getName();
+            if (child.isDirectory()) {
+                readDirectory(child, name + '/', entries);
+            } else {
+                try (InputStream is = new BufferedInputStream(new FileInputStream(child))) {
+                    entries.add(new Entry(name, child.lastModified(), readFully(is)));
+                }
+            }
+        }
+    }
+
+    /**
+     * writes the jar to a temporary file first, so that the input may also be the output
+     */
+    private static void writeJar(List<Entry> entries, File input, File output) throws IOException {
+        File parent = output.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File tmp = File.createTempFile(output.getName(), ".tmp", parent);
+        try {
+            try (JarOutputStream jos = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                for (Entry entry : entries) {
+                    JarEntry je = new JarEntry(entry.name);
+                    je.setTime(entry.time);
+                    jos.putNextEntry(je);
+                    if (entry.bytes != null) {
+                        jos.write(entry.instrumented != null ? entry.instrumented : entry.bytes);
+                    }
+                    jos.closeEntry();
+                }
+            }
+            if (output.exists() && !output.delete()) {
+                throw new IOException("Failed to replace " + output);
+            }
+            if (!tmp.renameTo(output)) {
+                throw new IOException("Failed to write " + output);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static void writeDirectory(List<Entry> entries, File input, File output) throws IOException {
+        boolean inPlace = input.getCanonicalFile().equals(output.getCanonicalFile());
+        for (Entry entry : entries) {
+            if (inPlace && (entry.instrumented == null)) {
+                continue;
+            }
+            File f = new File(output, entry.name);
+            f.getParentFile().mkdirs();
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(f))) {
+                os.write(entry.instrumented != null ? entry.instrumented : entry.bytes);
+            }
+        }
+    }
+
+    private static boolean isSignature(String name) {
+        if (!name.startsWith(SIGNATURE_DIR) || (name.indexOf('/', SIGNATURE_DIR.length()) >= 0)) {
+            return false;
+        }
+        for (String suffix : SIGNATURE_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = is.read(buffer)) >= 0) {
+            baos.write(buffer, 0, len);
+        }
+        return baos.toByteArray();
+    }
+
+    private static URL toURL(File f) throws MalformedURLException {
+        return f.getAbsoluteFile().toURI().toURL();
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+
+    static class Entry {
+        String name;
+        long time;
+        byte[] bytes;
+        byte[] instrumented;
+
+        Entry(String entryName, long entryTime, byte[] entryBytes) {
+            name = entryName;
+            time = entryTime;
+            bytes = entryBytes;
+        }
+
+        @Override
+        public String toString() {
+            return ToString.build(this);
+        }
+    }
+
+    /**
+     * splits the entries in halves, until few enough are left to instrument directly. A class that fails
+     * to instrument is left as is, as it would be by the agent.
+     */
+    class InstrumentTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient List<Entry> entries;
+        private int start;
+        private int end;
+        private transient ClassLoader loader;
+        private transient AtomicInteger count;
+
+        InstrumentTask(List<Entry> taskEntries, int taskStart, int taskEnd, ClassLoader classLoader, AtomicInteger instrumentedCount) {
+            entries = taskEntries;
+            start = taskStart;
+            end = taskEnd;
+            loader = classLoader;
+            count = instrumentedCount;
+        }
+
+        @Override
+        protected void compute() {
+            if ((end - start) > TASK_THRESHOLD) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new InstrumentTask(entries, start, mid, loader, count), new InstrumentTask(entries, mid, end, loader, count));
+                return;
+            }
+
+            for (int e = start; e < end; e++) {
+                Entry entry = entries.get(e);
+                if ((entry.bytes == null) || !entry.name.endsWith(CLASS_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    entry.instrumented = instrumentClass(loader, entry.bytes);
+                    if (entry.instrumented != null) {
+                        count.incrementAndGet();
+                    }
+                } catch (RuntimeException | LinkageError ex) {
+                    // swallow it, the class is copied as is
+                }
+            }
+        }
+    }
+}
@@ -17,7 +17,7 @@
  */
 package com.mebigfatguy.exagent;
 
-import java.util.regex.Matcher;
+import java.io.File;
 import java.util.regex.Pattern;
 
 public class Options {
@@ -25,12 +25,77 @@ public class Options {
     private static final String EXCLUSION_PATTERN_NAME = "exclusion_pattern";
     private static final String INCLUSION_PATTERN_NAME = "inclusion_pattern";
     private static final String PARM_SIZE_LIMIT_NAME = "parm_size_limit";
+    private static final String CAPTURE_MODE_NAME = "capture_mode";
+    private static final String THREAD_STATE_NAME = "thread_state";
+    private static final String CACHE_DIR_NAME = "cache_dir";
+    private static final String FRAME_MODE_NAME = "frame_mode";
+    private static final String SAMPLE_RATE_NAME = "sample_rate";
+    private static final String SAMPLE_RANDOM_NAME = "sample_random";
+    private static final String SAMPLE_BUDGET_NAME = "sample_budget";
+    private static final String MAX_FRAMES_NAME = "max_frames";
+    private static final String MAX_MESSAGE_SIZE_NAME = "max_message_size";
+    private static final String ENABLED_NAME = "enabled";
+    private static final String JMX_NAME = "jmx";
+    private static final String SKIP_TRIVIAL_NAME = "skip_trivial";
+    private static final String MIN_METHOD_SIZE_NAME = "min_method_size";
+    private static final String FILTER_NAME = "filter";
+    private static final String MAX_CAPTURED_FRAMES_NAME = "max_captured_frames";
+    private static final String CAPTURE_BUDGET_NAME = "capture_budget";
+    private static final String BUDGET_POLICY_NAME = "budget_policy";
+    private static final String REPORT_DIR_NAME = "report_dir";
+    private static final String REPORT_FILE_SIZE_NAME = "report_file_size";
+    private static final String REPORT_FILES_NAME = "report_files";
+    private static final String EMBELLISH_NAME = "embellish";
+    private static final String STORM_LIMIT_NAME = "storm_limit";
+    private static final String STORM_WINDOW_NAME = "storm_window";
+    private static final String ASYNC_CONTEXT_NAME = "async_context";
+    private static final String ADAPTIVE_NAME = "adaptive";
+    private static final String JFR_NAME = "jfr";
     
+    private static final String LAZY_CAPTURE_MODE = "lazy";
+    private static final String INDEXED_THREAD_STATE = "indexed";
+    private static final String POOLED_THREAD_STATE = "pooled";
+    private static final String COMPUTE_FRAME_MODE = "compute";
+    private static final String PRIMITIVES_BUDGET_POLICY = "primitives";
+    private static final int DEFAULT_REPORT_FILE_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_REPORT_FILES = 4;
+    private static final long DEFAULT_STORM_WINDOW = 60000L;
+    
+    private String agentArgs;
     private Pattern classExclusionPattern;
     private Pattern classInclusionPattern;
     private int parmSizeLimit;
+    private boolean lazyCapture;
+    private boolean indexedThreadState;
+    private boolean pooledThreadState;
+    private File cacheDir;
+    private boolean computeFrames;
+    private int sampleRate = 1;
+    private boolean randomSampling;
+    private int sampleBudget;
+    private int maxFrames;
+    private int maxMessageSize;
+    private boolean enabled = true;
+    private boolean jmx;
+    private boolean skipTrivial = true;
+    private int minMethodSize;
+    private String filterRules;
+    private ClassFilter classFilter;
+    private int maxCapturedFrames;
+    private long captureBudget;
+    private boolean primitivesPolicy;
+    private File reportDir;
+    private int reportFileSize = DEFAULT_REPORT_FILE_SIZE;
+    private int reportFiles = DEFAULT_REPORT_FILES;
+    private boolean embellish = true;
+    private int stormLimit;
+    private long stormWindow = DEFAULT_STORM_WINDOW;
+    private boolean asyncContext;
+    private boolean adaptive;
+    private boolean jfr;
     
     public Options(String agentArgs) {
+        this.agentArgs = agentArgs;
         if (agentArgs != null) {
             String[] args = agentArgs.split(";");
             for (String arg : args) {
@@ -50,35 +115,327 @@ public class Options {
                         case PARM_SIZE_LIMIT_NAME:
                             parmSizeLimit = Integer.parseInt(kv[1].trim());
                         break;
+                        
+                        case CAPTURE_MODE_NAME:
+                            lazyCapture = LAZY_CAPTURE_MODE.equalsIgnoreCase(kv[1].trim());
+                        break;
+                        
+                        case THREAD_STATE_NAME:
+                            indexedThreadState = INDEXED_THREAD_STATE.equalsIgnoreCase(kv[1].trim());
+                            pooledThreadState = POOLED_THREAD_STATE.equalsIgnoreCase(kv[1].trim());
+                        break;
+                        
+                        case CACHE_DIR_NAME:
+                            cacheDir = new File(kv[1].trim());
+                        break;
+                        
+                        case FRAME_MODE_NAME:
+                            computeFrames = COMPUTE_FRAME_MODE.equalsIgnoreCase(kv[1].trim());
+                        break;
+                        
+                        case SAMPLE_RATE_NAME:
+                            sampleRate = Math.max(1, Integer.parseInt(kv[1].trim()));
+                        break;
+                        
+                        case SAMPLE_RANDOM_NAME:
+                            randomSampling = Boolean.parseBoolean(kv[1].trim());
+                        break;
+                        
+                        case SAMPLE_BUDGET_NAME:
+                            sampleBudget = Integer.parseInt(kv[1].trim());
+                        break;
+                        
+                        case MAX_FRAMES_NAME:
+                            maxFrames = Integer.parseInt(kv[1].trim());
+                        break;
+                        
+                        case MAX_MESSAGE_SIZE_NAME:
+                            maxMessageSize = Integer.parseInt(kv[1].trim());
+                        break;
+                        
+                        case ENABLED_NAME:
+                            enabled = Boolean.parseBoolean(kv[1].trim());
+                        break;
+                        
+                        case JMX_NAME:
+                            jmx = Boolean.parseBoolean(kv[1].trim());
+                        break;
+                        
+                        case SKIP_TRIVIAL_NAME:
+                            skipTrivial = Boolean.parseBoolean(kv[1].trim());
+                        break;
+                        
+                        case MIN_METHOD_SIZE_NAME:
+                            minMethodSize = Integer.parseInt(kv[1].trim());
+                        break;
+                        
+                        case FILTER_NAME:
+                            filterRules = kv[1].trim();
+                        break;
+                        
+                        case MAX_CAPTURED_FRAMES_NAME:
+                            maxCapturedFrames = Integer.parseInt(kv[1].trim());
+                        break;
+                        
+                        case CAPTURE_BUDGET_NAME:
+                            captureBudget = Long.parseLong(kv[1].trim());
+                        break;
+                        
+                        case BUDGET_POLICY_NAME:
+                            primitivesPolicy = PRIMITIVES_BUDGET_POLICY.equalsIgnoreCase(kv[1].trim());
+                        break;
+                        
+                        case REPORT_DIR_NAME:
+                            reportDir = new File(kv[1].trim());
+                        break;
+                        
+                        case REPORT_FILE_SIZE_NAME:
+                            reportFileSize = Integer.parseInt(kv[1].trim());
+                        break;
+                        
+                        case REPORT_FILES_NAME:
+                            reportFiles = Integer.parseInt(kv[1].trim());
+                        break;
+                        
+                        case EMBELLISH_NAME:
+                            embellish = Boolean.parseBoolean(kv[1].trim());
+                        break;
+                        
+                        case STORM_LIMIT_NAME:
+                            stormLimit = Integer.parseInt(kv[1].trim());
+                        break;
+                        
+                        case STORM_WINDOW_NAME:
+                            stormWindow = Long.parseLong(kv[1].trim());
+                        break;
+                        
+                        case ASYNC_CONTEXT_NAME:
+                            asyncContext = Boolean.parseBoolean(kv[1].trim());
+                        break;
+                        
+                        case ADAPTIVE_NAME:
+                            adaptive = Boolean.parseBoolean(kv[1].trim());
+                        break;
+                        
+                        case JFR_NAME:
+                            jfr = Boolean.parseBoolean(kv[1].trim());
+                        break;
                     }
                 } catch (Exception e) {
                     // swallow it
                 }
             }
         }
-    }
-    
-    public boolean instrumentClass(String className) {
-        
-        boolean instrument = true;
-        
-        if (classExclusionPattern != null) {
-            Matcher m = classExclusionPattern.matcher(className);
-            instrument = !m.matches();
-        }
         
-        if (classInclusionPattern != null) {
-            Matcher m = classInclusionPattern.matcher(className);
-            instrument = m.matches();
-        }
-        
-        return instrument;
+        classFilter = new ClassFilter(filterRules, classInclusionPattern, classExclusionPattern);
     }
     
     public int getParmSizeLimit() {
         return parmSizeLimit;
     }
     
+    /**
+     * when true, parameters are stored as raw references and primitive values on method entry
+     * and only converted to strings if an exception is actually thrown
+     */
+    public boolean isLazyCapture() {
+        return lazyCapture;
+    }
+    
+    /**
+     * when true, each thread's capture state is found through a table indexed by thread id,
+     * falling back to a ThreadLocal only when thread ids collide
+     */
+    public boolean isIndexedThreadState() {
+        return indexedThreadState;
+    }
+
+    /**
+     * when true, threads borrow capture state from a pool while they run instrumented code, returning it when their
+     * outermost instrumented method exits, so that short lived threads, such as virtual threads, don't each allocate their own
+     */
+    public boolean isPooledThreadState() {
+        return pooledThreadState;
+    }
+    
+    /**
+     * @return the directory in which to cache instrumented classes, or null if classes aren't cached
+     */
+    public File getCacheDir() {
+        return cacheDir;
+    }
+    
+    /**
+     * when true, stack map frames are recomputed for the whole class, rather than the existing frames
+     * being adjusted for the locals the probes add
+     */
+    public boolean isComputeFrames() {
+        return computeFrames;
+    }
+    
+    /**
+     * @return n, where the parameters of 1 out of every n calls are captured, the others just record the method
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+    
+    /**
+     * when true, calls are sampled at random, at the sample rate, rather than strictly every nth call
+     */
+    public boolean isRandomSampling() {
+        return randomSampling;
+    }
+    
+    /**
+     * @return the maximum number of calls per second whose parameters are captured, beyond which the sample
+     * rate is lowered, or 0 if the sample rate is fixed
+     */
+    public int getSampleBudget() {
+        return sampleBudget;
+    }
+    
+    /**
+     * @return the number of innermost frames added to an exception message, or 0 for all
+     */
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+    
+    /**
+     * @return the number of characters an embellished exception message is limited to, or 0 for no limit
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+    
+    /**
+     * when false, an attach removes the instrumentation installed by an earlier attach, rather than installing it
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * when true, the agent's metrics are registered as an MBean with the platform MBean server
+     */
+    public boolean isJmxEnabled() {
+        return jmx;
+    }
+    
+    /**
+     * when true, methods that neither call out nor throw, along with bridges and synthetic accessors, aren't instrumented
+     */
+    public boolean isSkipTrivial() {
+        return skipTrivial;
+    }
+    
+    /**
+     * @return the number of instructions below which a method isn't instrumented, or 0 to instrument methods of any size
+     */
+    public int getMinMethodSize() {
+        return minMethodSize;
+    }
+    
+    /**
+     * @return the filter deciding which classes and methods are instrumented
+     */
+    public ClassFilter getClassFilter() {
+        return classFilter;
+    }
+    
+    /**
+     * @return the number of innermost frames each thread keeps, the outer ones being overwritten, or 0 for no limit
+     */
+    public int getMaxCapturedFrames() {
+        return maxCapturedFrames;
+    }
+    
+    /**
+     * @return the bytes of parameters all threads may hold, beyond which the budget policy applies, or 0 for no limit
+     */
+    public long getCaptureBudget() {
+        return captureBudget;
+    }
+    
+    /**
+     * when true, frames pushed while over the capture budget keep their primitive parameters, otherwise they
+     * only record which method is executing
+     */
+    public boolean isPrimitivesBudgetPolicy() {
+        return primitivesPolicy;
+    }
+    
+    /**
+     * @return the directory of the binary report log exceptions are published to, or null if reports aren't logged
+     */
+    public File getReportDir() {
+        return reportDir;
+    }
+    
+    /**
+     * @return the size in bytes of each file of the report log
+     */
+    public int getReportFileSize() {
+        return reportFileSize;
+    }
+    
+    /**
+     * @return the number of files the report log rotates through
+     */
+    public int getReportFiles() {
+        return reportFiles;
+    }
+    
+    /**
+     * @return whether exception messages are rewritten on the throwing thread, as opposed to only being logged
+     */
+    public boolean isEmbellish() {
+        return embellish;
+    }
+    
+    /**
+     * @return the number of throws of the same exception from the same frames to embellish in each storm window, or 0 for all of them
+     */
+    public int getStormLimit() {
+        return stormLimit;
+    }
+    
+    /**
+     * @return the length in milliseconds of the window the storm limit applies to
+     */
+    public long getStormWindow() {
+        return stormWindow;
+    }
+    
+    /**
+     * @return whether tasks submitted to executors carry a snapshot of the submitting thread's frames
+     */
+    public boolean isAsyncContext() {
+        return asyncContext;
+    }
+    
+    /**
+     * @return whether classes start out with just throw observers, and are only given probes once they show up in an exception
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+    
+    /**
+     * @return whether the captured frames of exceptions are recorded as flight recorder events
+     */
+    public boolean isJfr() {
+        return jfr;
+    }
+    
+    /**
+     * @return the arguments these options were parsed from, as they affect how classes are instrumented
+     */
+    public String getAgentArgs() {
+        return agentArgs;
+    }
+    
     @Override
     public String toString() {
         return ToString.build(this);
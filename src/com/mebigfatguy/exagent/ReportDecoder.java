@@ -0,0 +1,217 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mebigfatguy.exagent.rtsupport.ReportLog;
+
+/**
+ * renders the exception reports of a report log, oldest first, in the form of embellished messages. Run it as
+ *
+ *     java -cp exagent.jar com.mebigfatguy.exagent.ReportDecoder report_dir|file...
+ */
+public class ReportDecoder {
+
+    private static final String UNCAPTURED = "<not captured>";
+    private static final String DROPPED = "<dropped>";
+
+    private final PrintStream out;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    public ReportDecoder(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: java -cp exagent.jar " + ReportDecoder.class.getName() + " report_dir|file...");
+            System.exit(1);
+        }
+
+        ReportDecoder decoder = new ReportDecoder(System.out);
+        for (File f : findLogFiles(args)) {
+            decoder.decode(f);
+        }
+    }
+
+    /**
+     * @return the log files named, or held by the directories named, ordered oldest first
+     */
+    private static List<File> findLogFiles(String[] args) {
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            File f = new File(arg);
+            if (f.isDirectory()) {
+                File[] children = f.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        if (child.getName().startsWith(ReportLog.FILE_PREFIX) && child.getName().endsWith(ReportLog.FILE_SUFFIX)) {
+                            files.add(child);
+                        }
+                    }
+                }
+            } else {
+                files.add(f);
+            }
+        }
+
+        Map<File, Long> sequences = new HashMap<>();
+        for (File f : files) {
+            sequences.put(f, Long.valueOf(ReportLog.readSequence(f)));
+        }
+        files.removeIf(f -> sequences.get(f).longValue() < 0);
+        files.sort((f1, f2) -> sequences.get(f1).compareTo(sequences.get(f2)));
+        return files;
+    }
+
+    /**
+     * renders the reports of one file, which defines all the methods its reports use
+     */
+    public void decode(File f) throws IOException {
+        ByteBuffer bb;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            bb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+
+        Map<Integer, MethodInfo> methods = new HashMap<>();
+        ((Buffer) bb).position(ReportLog.HEADER_SIZE);
+        while (bb.remaining() >= 4) {
+            int length = bb.getInt();
+            if ((length <= 0) || (length > bb.remaining())) {
+                break;
+            }
+
+            ByteBuffer body = bb.slice();
+            ((Buffer) body).limit(length);
+            ((Buffer) bb).position(bb.position() + length);
+
+            byte type = body.get();
+            if (type == ReportLog.METHOD_RECORD) {
+                int id = body.getInt();
+                String cls = getString(body);
+                String name = getString(body);
+                String[] sigs = new String[body.getInt()];
+                for (int i = 0; i < sigs.length; i++) {
+                    sigs[i] = getString(body);
+                }
+                methods.put(Integer.valueOf(id), new MethodInfo(cls, name, Arrays.asList(sigs)));
+            } else if (type == ReportLog.REPORT_RECORD) {
+                renderReport(body, methods);
+            }
+        }
+    }
+
+    private void renderReport(ByteBuffer body, Map<Integer, MethodInfo> methods) {
+        long time = body.getLong();
+        long threadId = body.getLong();
+        String threadName = getString(body);
+        String exceptionClass = getString(body);
+        String message = getString(body);
+        int omittedFrames = body.getInt();
+        int frameCount = body.getInt();
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(dateFormat.format(new Date(time))).append(" [").append(threadName).append('#').append(threadId).append("] ");
+        sb.append(exceptionClass).append(": ").append(message);
+        for (int f = 0; f < frameCount; f++) {
+            MethodInfo mi = methods.get(Integer.valueOf(body.getInt()));
+            int count = body.getInt();
+            sb.append('\n');
+            if (mi == null) {
+                sb.append("<unknown method>(");
+            } else {
+                sb.append(mi.getCls()).append('.').append(mi.getName()).append('(');
+            }
+
+            if (count < 0) {
+                if ((mi == null) || !mi.getParmSignatures().isEmpty()) {
+                    sb.append(UNCAPTURED);
+                }
+            } else {
+                String sep = "";
+                for (int i = 0; i < count; i++) {
+                    char sigType = ((mi != null) && (i < mi.getParmSignatures().size())) ? mi.getParmSignatures().get(i).charAt(0) : 'L';
+                    sb.append(sep).append(getValue(body, sigType));
+                    sep = ", ";
+                }
+            }
+            sb.append(')');
+        }
+        if (omittedFrames > 0) {
+            sb.append("\n... ").append(omittedFrames).append(" more");
+        }
+
+        out.println(sb);
+        out.println();
+    }
+
+    private static String getValue(ByteBuffer body, char sigType) {
+        byte tag = body.get();
+        switch (tag) {
+            case ReportLog.DROPPED_VALUE:
+                return DROPPED;
+            case ReportLog.STRING_VALUE:
+                return getString(body);
+            case ReportLog.LONG_VALUE:
+                long l = body.getLong();
+                return (sigType == 'D') ? String.valueOf(Double.longBitsToDouble(l)) : String.valueOf(l);
+            default:
+                int i = body.getInt();
+                switch (sigType) {
+                    case 'Z':
+                        return String.valueOf(i != 0);
+                    case 'C':
+                        return String.valueOf((char) i);
+                    case 'F':
+                        return String.valueOf(Float.intBitsToFloat(i));
+                    default:
+                        return String.valueOf(i);
+                }
+        }
+    }
+
+    private static String getString(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+}
@@ -17,19 +17,43 @@
  */
 package com.mebigfatguy.exagent;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
+import com.mebigfatguy.exagent.rtsupport.MethodRegistry;
+
 public class StackTraceClassVisitor extends ClassVisitor {
 
     private String clsName;
-    private int maxParmSize;
+    private Options options;
+    private Set<String> skippedMethods;
+    private Set<String> probedMethods;
+    private List<Integer> methodIds = new ArrayList<>();
+    private int skippedCount;
+    
+    /**
+     * @param skippedMethods the methods to leave alone, as found by {@link MethodClassifier}
+     */
+    public StackTraceClassVisitor(ClassWriter cw, Options options, Set<String> skippedMethods) {
+        this(cw, options, skippedMethods, null);
+    }
     
-    public StackTraceClassVisitor(ClassWriter cw, int parmSizeLimit) {
-        super(Opcodes.ASM5, cw);
-        maxParmSize = parmSizeLimit;
+    /**
+     * @param skippedMethods the methods to leave alone, as found by {@link MethodClassifier}
+     * @param probedMethods in adaptive mode, the names of the methods to give probes, the rest just get throw observers,
+     *                      otherwise null
+     */
+    public StackTraceClassVisitor(ClassWriter cw, Options options, Set<String> skippedMethods, Set<String> probedMethods) {
+        super(Opcodes.ASM9, cw);
+        this.options = options;
+        this.skippedMethods = skippedMethods;
+        this.probedMethods = probedMethods;
     }
     
     @Override
@@ -39,16 +63,47 @@ public class StackTraceClassVisitor extends ClassVisitor {
     }
 
     /**
-     * we ignore instrumenting toString as you can get into infinite recursive loops
+     * we ignore instrumenting toString as you can get into infinite recursive loops.
+     * Each instrumented method is registered once here, so the probe only needs to pass the method id.
+     * In adaptive mode, every method also gets a throw observer, which sits in front of any probe, so the
+     * probe sees the observer's calls as the method's own.
      */
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
         MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
         if (name.equals("toString") && desc.equals("()Ljava/lang/String;")) {
-            return mv;
+            return observe(mv);
+        }
+        if (skippedMethods.contains(MethodClassifier.methodKey(name, desc))) {
+            skippedCount++;
+            return observe(mv);
+        }
+        if ((probedMethods != null) && !probedMethods.contains(name)) {
+            return observe(mv);
         }
         
-        return new StackTraceMethodVisitor(mv, clsName, name, access, desc, maxParmSize);
+        List<String> parmSigs = StackTraceMethodVisitor.parseSignature(desc);
+        int methodId = MethodRegistry.register(new MethodInfo(clsName.replace('.',  '/'), name, parmSigs));
+        methodIds.add(methodId);
+        return observe(new StackTraceMethodVisitor(mv, methodId, name, access, parmSigs, options));
+    }
+    
+    private MethodVisitor observe(MethodVisitor mv) {
+        return (probedMethods != null) ? new ThrowObserverMethodVisitor(mv) : mv;
+    }
+    
+    /**
+     * @return the ids of the methods registered while visiting this class
+     */
+    public List<Integer> getMethodIds() {
+        return methodIds;
+    }
+    
+    /**
+     * @return the number of methods left uninstrumented as not worth a probe
+     */
+    public int getSkippedCount() {
+        return skippedCount;
     }
     
     @Override
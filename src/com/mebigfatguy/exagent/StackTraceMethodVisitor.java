@@ -20,8 +20,9 @@ package com.mebigfatguy.exagent;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -31,21 +32,17 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.TypePath;
 
+import com.mebigfatguy.exagent.rtsupport.ContextPropagation;
 import com.mebigfatguy.exagent.rtsupport.EXASupport;
+import com.mebigfatguy.exagent.rtsupport.FrameStack;
 
 public class StackTraceMethodVisitor extends MethodVisitor {
 
     private static Pattern PARM_PATTERN = Pattern.compile("(\\[*(?:[ZCBSIJFD]|(?:L[^;]+;)))");
     
     private static String EXASUPPORT_CLASS_NAME = EXASupport.class.getName().replace('.', '/');
-    private static String METHODINFO_CLASS_NAME = MethodInfo.class.getName().replace('.', '/');
-    private static String STRING_CLASS_NAME = String.class.getName().replace('.',  '/');
-    private static String THREADLOCAL_CLASS_NAME = ThreadLocal.class.getName().replace('.', '/');
-    private static String LIST_CLASS_NAME = List.class.getName().replace('.', '/');
-    private static String ARRAYLIST_CLASS_NAME = ArrayList.class.getName().replace('.', '/');
-    private static String ARRAYS_CLASS_NAME = Arrays.class.getName().replace('.', '/');
-    private static String COLLECTIONS_CLASS_NAME = Collections.class.getName().replace('.', '/');
-    private static String EXCEPTION_CLASS_NAME = Exception.class.getName().replace('.', '/');
+    private static String FRAMESTACK_CLASS_NAME = FrameStack.class.getName().replace('.', '/');
+    private static String CONTEXT_PROPAGATION_CLASS_NAME = ContextPropagation.class.getName().replace('.', '/');
     
     private static BitSet RETURN_CODES = new BitSet();
     static {
@@ -58,34 +55,58 @@ public class StackTraceMethodVisitor extends MethodVisitor {
     }
     
     private static final String CTOR_NAME = "<init>";
+    private static final String THROWABLE_CLASS_NAME = "java/lang/Throwable";
     
-    private String clsName;
+    /** the types whose execute and submit methods take tasks to run on other threads */
+    private static final Set<String> EXECUTOR_CLASS_NAMES = new HashSet<>(Arrays.asList(
+            "java/util/concurrent/Executor",
+            "java/util/concurrent/ExecutorService",
+            "java/util/concurrent/ScheduledExecutorService",
+            "java/util/concurrent/AbstractExecutorService",
+            "java/util/concurrent/ThreadPoolExecutor",
+            "java/util/concurrent/ScheduledThreadPoolExecutor",
+            "java/util/concurrent/ForkJoinPool"));
+    private static final String COMPLETABLE_FUTURE_CLASS_NAME = "java/util/concurrent/CompletableFuture";
+    /** the task types that are wrapped, as the first parameter of a submission method */
+    private static final Set<String> TASK_SIGNATURES = new HashSet<>(Arrays.asList(
+            "Ljava/lang/Runnable;",
+            "Ljava/util/concurrent/Callable;",
+            "Ljava/util/function/Supplier;"));
+    
+    /** the depth and frame stack locals added after the parameters */
+    private static final int ADDED_LOCALS = 2;
+    
+    private int methodId;
     private String methodName;
     private List<Parm> parms = new ArrayList<>();
     private boolean isCtor;
-    private boolean sawInvokeSpecial;
+    private boolean sawSuperCall;
+    private int pendingNews;
+    private boolean probeInjected;
+    private Label probeEndLabel;
     private int lastParmSlot;
-    private int exLocalSlot;
     private int depthLocalSlot;
-    private int maxParmSize;
+    private int stackLocalSlot;
+    private boolean lazyCapture;
+    private boolean asyncContext;
     
-    public StackTraceMethodVisitor(MethodVisitor mv, String cls, String mName, int access, String desc, int parmSizeLimit) {
-        super(Opcodes.ASM5, mv);
-        clsName = cls;
+    public StackTraceMethodVisitor(MethodVisitor mv, int mId, String mName, int access, List<String> parmSigs, Options options) {
+        super(Opcodes.ASM9, mv);
+        methodId = mId;
         methodName = mName;
-        maxParmSize = parmSizeLimit;
+        lazyCapture = options.isLazyCapture();
+        asyncContext = options.isAsyncContext();
         
         int nextSlot = ((access & Opcodes.ACC_STATIC) != 0) ? 0 : 1;
         lastParmSlot = nextSlot - 1;
-        List<String> sigs = parseSignature(desc);
-        for (String sig : sigs) {
+        for (String sig : parmSigs) {
             parms.add(new Parm(sig, nextSlot));
             lastParmSlot = nextSlot;
             nextSlot += ("J".equals(sig) || "D".equals(sig)) ? 2 : 1;
         }
         
-        exLocalSlot = nextSlot++;
-        depthLocalSlot = nextSlot;
+        depthLocalSlot = nextSlot++;
+        stackLocalSlot = nextSlot;
     }
 
     @Override
@@ -103,76 +124,151 @@ public class StackTraceMethodVisitor extends MethodVisitor {
     @Override
     public void visitInsn(int opcode) {
         
+        if (!probeInjected) {
+            // a throw in a constructor before the super call, there is no frame yet
+            super.visitInsn(opcode);
+            return;
+        }
+        
         if (RETURN_CODES.get(opcode)) {
-            super.visitVarInsn(Opcodes.ILOAD, depthLocalSlot);
-            super.visitMethodInsn(Opcodes.INVOKESTATIC, EXASUPPORT_CLASS_NAME, "popMethodInfo", "(I)V", false);
+            injectPopFrame();
         } else if (opcode == Opcodes.ATHROW) {
-            
-            super.visitVarInsn(Opcodes.ASTORE, exLocalSlot);
-            
-            Label tryLabel = new Label();
-            Label endTryLabel = new Label();
-            Label catchLabel = new Label();
-            Label continueLabel = new Label();
-            
-            super.visitTryCatchBlock(tryLabel, endTryLabel, catchLabel, EXCEPTION_CLASS_NAME);
-            
-            super.visitLabel(tryLabel);
-            
-            super.visitVarInsn(Opcodes.ALOAD, exLocalSlot);
-            super.visitMethodInsn(Opcodes.INVOKESTATIC, EXASUPPORT_CLASS_NAME, "embellishMessage", "(Ljava/lang/Throwable;)V", false);
-            super.visitVarInsn(Opcodes.ILOAD, depthLocalSlot);
-            super.visitMethodInsn(Opcodes.INVOKESTATIC, EXASUPPORT_CLASS_NAME, "popMethodInfo", "(I)V", false);
-
-            super.visitJumpInsn(Opcodes.GOTO, continueLabel);
-            super.visitLabel(endTryLabel);
-            
-            super.visitLabel(catchLabel);
-            super.visitInsn(Opcodes.POP);
-            
-            super.visitLabel(continueLabel);
-            super.visitVarInsn(Opcodes.ALOAD, exLocalSlot);
+            // embellishMessage never throws, so the probe needs no handler, and no new frames
+            super.visitInsn(Opcodes.DUP);
+            super.visitVarInsn(Opcodes.ALOAD, stackLocalSlot);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, EXASUPPORT_CLASS_NAME, "embellishMessage", "(Ljava/lang/Throwable;" + signaturizeClass(FRAMESTACK_CLASS_NAME) + ")V", false);
+            injectPopFrame();
         }
         super.visitInsn(opcode);
     }
+    
+    /**
+     * adds the probe's locals to the existing (expanded) frames. This is what allows classes to be
+     * transformed without COMPUTE_FRAMES. When frames are being computed, the ClassWriter ignores these.
+     */
+    @Override
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+        if (type != Opcodes.F_NEW) {
+            super.visitFrame(type, nLocal, local, nStack, stack);
+            return;
+        }
+        
+        Object[] newLocal = new Object[Math.max(nLocal, depthLocalSlot) + ADDED_LOCALS];
+        int newNLocal = 0;
+        int l = 0;
+        int slot = 0;
+        while (slot < depthLocalSlot) {
+            Object localType = (l < nLocal) ? local[l++] : Opcodes.TOP;
+            newLocal[newNLocal++] = localType;
+            slot += ((localType == Opcodes.LONG) || (localType == Opcodes.DOUBLE)) ? 2 : 1;
+        }
+        
+        newLocal[newNLocal++] = probeInjected ? Opcodes.INTEGER : Opcodes.TOP;
+        newLocal[newNLocal++] = probeInjected ? FRAMESTACK_CLASS_NAME : Opcodes.TOP;
+        while (l < nLocal) {
+            newLocal[newNLocal++] = local[l++];
+        }
+        
+        super.visitFrame(type, newNLocal, newLocal, nStack, stack);
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        if (probeInjected) {
+            injectFrameRestoringHandler();
+        }
+        super.visitMaxs(maxStack, maxLocals);
+    }
 
     @Override
     public void visitMethodInsn(int opcode, String owner, String name,
             String desc, boolean itf) {
+        if (asyncContext) {
+            injectTaskWrapper(opcode, owner, name, desc);
+        }
         super.visitMethodInsn(opcode, owner, name, desc, itf);
         
-        if ((opcode == Opcodes.INVOKESPECIAL) && isCtor && !sawInvokeSpecial) {
-            sawInvokeSpecial = true;
+        if ((opcode == Opcodes.INVOKESPECIAL) && isCtor && !sawSuperCall && CTOR_NAME.equals(name)) {
+            // objects created to pass to the super or this call are initialized first
+            if (pendingNews > 0) {
+                pendingNews--;
+                return;
+            }
+            sawSuperCall = true;
             
             injectCallStackPopulation();
         }
     }
     
+    /**
+     * wraps the task passed to an executor's execute or submit, or to CompletableFuture's runAsync or supplyAsync,
+     * in one that carries a snapshot of this thread's frames. The task is the first argument, and is followed by
+     * at most one reference, such as the result to return, or the executor to use, which is swapped out of the way.
+     */
+    private void injectTaskWrapper(int opcode, String owner, String name, String desc) {
+        boolean isSubmission;
+        if (opcode == Opcodes.INVOKESTATIC) {
+            isSubmission = COMPLETABLE_FUTURE_CLASS_NAME.equals(owner) && ("runAsync".equals(name) || "supplyAsync".equals(name));
+        } else {
+            isSubmission = EXECUTOR_CLASS_NAMES.contains(owner) && ("execute".equals(name) || "submit".equals(name));
+        }
+        if (!isSubmission) {
+            return;
+        }
+        
+        List<String> sigs = parseSignature(desc);
+        if (sigs.isEmpty() || (sigs.size() > 2) || !TASK_SIGNATURES.contains(sigs.get(0))) {
+            return;
+        }
+        boolean underTop = sigs.size() == 2;
+        if (underTop && !sigs.get(1).startsWith("L")) {
+            return;
+        }
+        
+        String taskSig = sigs.get(0);
+        if (underTop) {
+            super.visitInsn(Opcodes.SWAP);
+        }
+        super.visitMethodInsn(Opcodes.INVOKESTATIC, CONTEXT_PROPAGATION_CLASS_NAME, "wrap", "(" + taskSig + ")" + taskSig, false);
+        if (underTop) {
+            super.visitInsn(Opcodes.SWAP);
+        }
+    }
+    
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        super.visitTypeInsn(opcode, type);
+        
+        if ((opcode == Opcodes.NEW) && isCtor && !sawSuperCall) {
+            pendingNews++;
+        }
+    }
+    
     @Override
     public void visitVarInsn(int opcode, int var) {
-        super.visitVarInsn(opcode, (var <= lastParmSlot) ? var : var + 2);
+        super.visitVarInsn(opcode, (var <= lastParmSlot) ? var : var + ADDED_LOCALS);
     }
     
     @Override
     public void visitIincInsn(int var, int increment) {
-        mv.visitIincInsn((var <= lastParmSlot) ? var : var + 2, increment);
+        mv.visitIincInsn((var <= lastParmSlot) ? var : var + ADDED_LOCALS, increment);
     }
 
     @Override
     public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
-        super.visitLocalVariable(name, desc, signature, start, end, (index <= lastParmSlot) ? index : index+2);
+        super.visitLocalVariable(name, desc, signature, start, end, (index <= lastParmSlot) ? index : index + ADDED_LOCALS);
     }
 
     @Override
     public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start, Label[] end, int[] index, String desc, boolean visible) {
-        if (api < Opcodes.ASM5) {
+        if (api < Opcodes.ASM9) {
             throw new RuntimeException();
         }
         int[] modifiedIndices = new int[index.length];
         System.arraycopy(index, 0, modifiedIndices, 0, index.length);
         for (int i = 0; i < modifiedIndices.length; i++) {
             if (index[i] > lastParmSlot) {
-                modifiedIndices[i] += 2;
+                modifiedIndices[i] += ADDED_LOCALS;
             }
         }
         return super.visitLocalVariableAnnotation(typeRef, typePath, start, end, modifiedIndices, desc, visible);
@@ -180,110 +276,102 @@ public class StackTraceMethodVisitor extends MethodVisitor {
     
     private void injectCallStackPopulation() {
         
-        // ExAgent.METHOD_INFO.get();
-        super.visitFieldInsn(Opcodes.GETSTATIC, EXASUPPORT_CLASS_NAME, "METHOD_INFO", signaturizeClass(THREADLOCAL_CLASS_NAME));
-        super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, THREADLOCAL_CLASS_NAME, "get", "()Ljava/lang/Object;", false);
-        super.visitTypeInsn(Opcodes.CHECKCAST, LIST_CLASS_NAME);
-        
+        // FrameStack fs = EXASupport.getFrameStack();
+        // the frame stack is kept in a local, so that the exit paths need not look it up again
+        super.visitMethodInsn(Opcodes.INVOKESTATIC, EXASUPPORT_CLASS_NAME, "getFrameStack", "()" + signaturizeClass(FRAMESTACK_CLASS_NAME), false);
         super.visitInsn(Opcodes.DUP);
-        super.visitMethodInsn(Opcodes.INVOKEINTERFACE, LIST_CLASS_NAME, "size", "()I", true);
-        super.visitVarInsn(Opcodes.ISTORE, depthLocalSlot);
+        super.visitVarInsn(Opcodes.ASTORE, stackLocalSlot);
         
-        //new MethodInfo(cls, name, parmMap);
-        super.visitTypeInsn(Opcodes.NEW, METHODINFO_CLASS_NAME);
+        //depth = fs.push(methodId);
         super.visitInsn(Opcodes.DUP);
-        super.visitLdcInsn(clsName.replace('.',  '/'));
-        super.visitLdcInsn(methodName);        
+        injectIntConstant(mv, methodId);
+        super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAMESTACK_CLASS_NAME, "push", "(I)I", false);
+        super.visitVarInsn(Opcodes.ISTORE, depthLocalSlot);
         
-        if (parms.isEmpty()) {
-            super.visitMethodInsn(Opcodes.INVOKESTATIC, COLLECTIONS_CLASS_NAME, "emptyList", "()Ljava/util/List;", false);
-        } else {
-            super.visitTypeInsn(Opcodes.NEW, ARRAYLIST_CLASS_NAME);
+        for (Parm parm : parms) {
             super.visitInsn(Opcodes.DUP);
-            super.visitIntInsn(Opcodes.BIPUSH, parms.size());
-            super.visitMethodInsn(Opcodes.INVOKESPECIAL, ARRAYLIST_CLASS_NAME, CTOR_NAME, "(I)V", false);
+                  
+            switch (parm.signature) {
 
-            for (Parm parm : parms) {
-                super.visitInsn(Opcodes.DUP);
-                      
-                switch (parm.signature) {
-    
-                case "C":
-                    super.visitVarInsn(Opcodes.ILOAD, parm.register);
-                    super.visitMethodInsn(Opcodes.INVOKESTATIC, STRING_CLASS_NAME, "valueOf", "(C)Ljava/lang/String;", false);
-                    break;
-                    
-                case "Z":
-                    super.visitVarInsn(Opcodes.ILOAD, parm.register);
-                    super.visitMethodInsn(Opcodes.INVOKESTATIC, STRING_CLASS_NAME, "valueOf", "(Z)Ljava/lang/String;", false);
-                    break;
-                    
-                case "B":
-                case "S":
-                case "I":
-                    super.visitVarInsn(Opcodes.ILOAD, parm.register);
-                    super.visitMethodInsn(Opcodes.INVOKESTATIC, STRING_CLASS_NAME, "valueOf", "(I)Ljava/lang/String;", false);
-                    break;
-                    
-                case "J":
-                    super.visitVarInsn(Opcodes.LLOAD, parm.register);
-                    super.visitMethodInsn(Opcodes.INVOKESTATIC, STRING_CLASS_NAME, "valueOf", "(J)Ljava/lang/String;", false);
-                    break;
-                    
-                case "F":
-                    super.visitVarInsn(Opcodes.FLOAD, parm.register);
-                    super.visitMethodInsn(Opcodes.INVOKESTATIC, STRING_CLASS_NAME, "valueOf", "(F)Ljava/lang/String;", false);
-                    break;
-                    
-                case "D":
-                    super.visitVarInsn(Opcodes.DLOAD, parm.register);
-                    super.visitMethodInsn(Opcodes.INVOKESTATIC, STRING_CLASS_NAME, "valueOf", "(D)Ljava/lang/String;", false);
-                    break;
-                    
-                default:
-                    super.visitVarInsn(Opcodes.ALOAD, parm.register);
-                    if (parm.signature.startsWith("[")) {
-                        char arrayElemTypeChar = parm.signature.charAt(1);
-                        if ((arrayElemTypeChar == 'L') || (arrayElemTypeChar == '[')) {
-                            super.visitMethodInsn(Opcodes.INVOKESTATIC, ARRAYS_CLASS_NAME, "toString", "([Ljava/lang/Object;)Ljava/lang/String;", false);
-                        } else {
-                            super.visitMethodInsn(Opcodes.INVOKESTATIC, ARRAYS_CLASS_NAME, "toString", "([" + arrayElemTypeChar + ")Ljava/lang/String;", false);                            
-                        }
-                    } else {
-                        super.visitMethodInsn(Opcodes.INVOKESTATIC, STRING_CLASS_NAME, "valueOf", "(Ljava/lang/Object;)Ljava/lang/String;", false);
-                    }
-                    break;
-                }  
+            case "C":
+            case "Z":
+            case "B":
+            case "S":
+            case "I":
+                super.visitVarInsn(Opcodes.ILOAD, parm.register);
+                super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAMESTACK_CLASS_NAME, "putInt", "(I)V", false);
+                break;
+                
+            case "J":
+                super.visitVarInsn(Opcodes.LLOAD, parm.register);
+                super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAMESTACK_CLASS_NAME, "putLong", "(J)V", false);
+                break;
+                
+            case "F":
+                super.visitVarInsn(Opcodes.FLOAD, parm.register);
+                super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAMESTACK_CLASS_NAME, "putFloat", "(F)V", false);
+                break;
                 
-                if (maxParmSize > 0) {
-                    super.visitInsn(Opcodes.DUP);
-                    super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_CLASS_NAME, "length", "()I", false);
-                    if (maxParmSize <= 127) {
-                        super.visitIntInsn(Opcodes.BIPUSH, maxParmSize);
-                    } else {
-                        super.visitLdcInsn(maxParmSize);
-                    }
-                    Label falseLabel = new Label();
-                    super.visitJumpInsn(Opcodes.IF_ICMPLE, falseLabel);
-                    super.visitIntInsn(Opcodes.BIPUSH, 0);
-                    super.visitLdcInsn(maxParmSize);
-                    super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_CLASS_NAME, "substring", "(II)Ljava/lang/String;", false);
-                    super.visitLabel(falseLabel);
-                }
+            case "D":
+                super.visitVarInsn(Opcodes.DLOAD, parm.register);
+                super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAMESTACK_CLASS_NAME, "putDouble", "(D)V", false);
+                break;
                 
-                super.visitMethodInsn(Opcodes.INVOKEINTERFACE, LIST_CLASS_NAME, "add", "(Ljava/lang/Object;)Z", true);
-                super.visitInsn(Opcodes.POP);
+            default:
+                super.visitVarInsn(Opcodes.ALOAD, parm.register);
+                // eager capture stringifies references now, primitives need no such treatment as they can't change
+                super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAMESTACK_CLASS_NAME, lazyCapture ? "putRef" : "putRendered", "(Ljava/lang/Object;)V", false);
+                break;
             }
         }
         
-        super.visitMethodInsn(Opcodes.INVOKESPECIAL,  METHODINFO_CLASS_NAME, CTOR_NAME, "(Ljava/lang/String;Ljava/lang/String;Ljava/util/List;)V", false);
-
-        //add(methodInfo);
-        super.visitMethodInsn(Opcodes.INVOKEINTERFACE, LIST_CLASS_NAME, "add", "(Ljava/lang/Object;)Z", true);
         super.visitInsn(Opcodes.POP);
+        probeInjected = true;
+        
+        probeEndLabel = new Label();
+        super.visitLabel(probeEndLabel);
+    }
+    
+    /**
+     * wraps everything after the probe in a catch-all that pops the frame and rethrows, so that the frames of
+     * methods an exception propagates through are not left on the stack. It is added last, so the method's
+     * own handlers take precedence. Only the added locals are live in the handler, so the parameters are TOP.
+     */
+    private void injectFrameRestoringHandler() {
+        Label handlerLabel = new Label();
+        super.visitTryCatchBlock(probeEndLabel, handlerLabel, handlerLabel, null);
+        super.visitLabel(handlerLabel);
+        
+        Object[] locals = new Object[depthLocalSlot + ADDED_LOCALS];
+        Arrays.fill(locals, 0, depthLocalSlot, Opcodes.TOP);
+        locals[depthLocalSlot] = Opcodes.INTEGER;
+        locals[stackLocalSlot] = FRAMESTACK_CLASS_NAME;
+        super.visitFrame(Opcodes.F_NEW, locals.length, locals, 1, new Object[] { THROWABLE_CLASS_NAME });
+        
+        injectPopFrame();
+        super.visitInsn(Opcodes.ATHROW);
+    }
+    
+    private void injectPopFrame() {
+        //fs.popTo(depth);
+        super.visitVarInsn(Opcodes.ALOAD, stackLocalSlot);
+        super.visitVarInsn(Opcodes.ILOAD, depthLocalSlot);
+        super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAMESTACK_CLASS_NAME, "popTo", "(I)V", false);
+    }
+    
+    static void injectIntConstant(MethodVisitor mv, int value) {
+        if ((value >= -1) && (value <= 5)) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if ((value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE)) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if ((value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE)) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
     }
     
-    private static List<String> parseSignature(String signature) {
+    static List<String> parseSignature(String signature) {
         List<String> parms = new ArrayList<>(8);
         
         int openParenPos = signature.indexOf('(');
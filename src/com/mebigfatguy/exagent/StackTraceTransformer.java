@@ -24,17 +24,28 @@ import java.io.OutputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 
 public class StackTraceTransformer implements ClassFileTransformer {
     
     private Options options;
+    private ClassCache classCache;
+    /** in adaptive mode, the methods of each class that have shown up in an exception, and so are given probes */
+    private ConcurrentMap<String, Set<String>> failingMethods = new ConcurrentHashMap<>();
     
     public StackTraceTransformer(Options options) {
         this.options = options;
+        // the cache is keyed by class bytes, so can't hold classes instrumented differently by loader,
+        // or, in adaptive mode, by what has failed so far
+        if ((options.getCacheDir() != null) && !options.getClassFilter().isLoaderDependent() && !options.isAdaptive()) {
+            classCache = new ClassCache(options.getCacheDir(), options.getAgentArgs());
+        }
     }
     
     @Override
@@ -42,21 +53,83 @@ public class StackTraceTransformer implements ClassFileTransformer {
             ProtectionDomain protectionDomain,
             byte[] classfileBuffer) throws IllegalClassFormatException {
         
-        if (className.startsWith("java/") 
-         || className.startsWith("javax/") 
-         || className.startsWith("sun/") 
-         || className.startsWith("com/mebigfatguy/exagent/")
-         || !options.instrumentClass(className)) {
-            return classfileBuffer;
+        if (!isInstrumentable(loader, className)) {
+            AgentMetrics.classSkipped();
+            // null, not the same bytes, as returning bytes marks a class of a named module as transformed by an agent
+            return null;
+        }
+        
+        long start = System.nanoTime();
+        byte[] instrumented = instrument(loader, className, classfileBuffer);
+        AgentMetrics.classTransformed(className, System.nanoTime() - start);
+        
+        //debugWriteBytes(className, instrumented);
+        return instrumented;
+    }
+    
+    private byte[] instrument(ClassLoader loader, String className, byte[] classfileBuffer) {
+        if (classCache != null) {
+            byte[] cached = classCache.load(classfileBuffer);
+            if (cached != null) {
+                return cached;
+            }
         }
         
         ClassReader cr = new ClassReader(classfileBuffer);
-        ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS|ClassWriter.COMPUTE_FRAMES);
-        ClassVisitor stackTraceVisitor = new StackTraceClassVisitor(cw, options.getParmSizeLimit());
+        if (MethodIdBinder.isBound(cr)) {
+            // already instrumented ahead of time
+            return null;
+        }
+        int flags = options.isComputeFrames() ? ClassWriter.COMPUTE_MAXS|ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
+        ClassWriter cw = new HierarchyClassWriter(cr, flags, loader);
+        Set<String> probedMethods = options.isAdaptive() ? getFailingMethods(className) : null;
+        StackTraceClassVisitor stackTraceVisitor = new StackTraceClassVisitor(cw, options, MethodClassifier.findSkippedMethods(cr, options, loader), probedMethods);
         cr.accept(stackTraceVisitor, ClassReader.EXPAND_FRAMES);
+        AgentMetrics.methodsClassified(className, stackTraceVisitor.getMethodIds().size(), stackTraceVisitor.getSkippedCount());
         
-        //debugWriteBytes(className, cw.toByteArray());
-        return cw.toByteArray();
+        byte[] instrumented = cw.toByteArray();
+        if (classCache != null) {
+            classCache.store(classfileBuffer, instrumented, stackTraceVisitor.getMethodIds());
+        }
+        return instrumented;
+    }
+    
+    /**
+     * @param loader the class's defining loader, or null for the bootstrap loader
+     * @param className the slashed name of a class
+     * @return whether the class is one this transformer instruments
+     */
+    public boolean isInstrumentable(ClassLoader loader, String className) {
+        return options.getClassFilter().instrumentClass(loader, className);
+    }
+    
+    /**
+     * records that a method has shown up in an exception, so that it is given probes the next time its class
+     * is transformed
+     * 
+     * @param className the slashed name of the method's class
+     * @param methodName the name of the method, which stands for all its overloads
+     * @return whether the method is newly recorded
+     */
+    public boolean addFailingMethod(String className, String methodName) {
+        Set<String> methods = failingMethods.get(className);
+        if (methods == null) {
+            methods = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            Set<String> existing = failingMethods.putIfAbsent(className, methods);
+            if (existing != null) {
+                methods = existing;
+            }
+        }
+        return methods.add(methodName);
+    }
+    
+    /**
+     * @param className the slashed name of a class
+     * @return the names of the class's methods that have shown up in an exception, possibly none
+     */
+    public Set<String> getFailingMethods(String className) {
+        Set<String> methods = failingMethods.get(className);
+        return (methods == null) ? Collections.<String>emptySet() : methods;
     }
     
     private static void debugWriteBytes(String className, byte[] data) {
@@ -0,0 +1,57 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+/**
+ * the current and deepest shadow stack depth of one thread
+ */
+public class ThreadStackMetrics {
+
+    private String threadName;
+    private long threadId;
+    private int depth;
+    private int maxDepth;
+
+    public ThreadStackMetrics(String threadName, long threadId, int depth, int maxDepth) {
+        this.threadName = threadName;
+        this.threadId = threadId;
+        this.depth = depth;
+        this.maxDepth = maxDepth;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+}
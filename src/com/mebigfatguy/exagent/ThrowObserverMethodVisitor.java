@@ -0,0 +1,164 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import com.mebigfatguy.exagent.rtsupport.ThrowObserver;
+
+/**
+ * reports the exceptions a method throws, or catches, to the {@link ThrowObserver}, which is all that is
+ * added to methods in adaptive mode until they show up in an exception. Both only run once an exception
+ * has been thrown, so the method costs the same as before as long as nothing fails.
+ */
+public class ThrowObserverMethodVisitor extends MethodVisitor {
+
+    private static final String THROW_OBSERVER_CLASS_NAME = ThrowObserver.class.getName().replace('.', '/');
+    
+    private Set<Label> handlers = new HashSet<>();
+    private boolean atHandler;
+    
+    public ThrowObserverMethodVisitor(MethodVisitor mv) {
+        super(Opcodes.ASM9, mv);
+    }
+    
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        handlers.add(handler);
+        super.visitTryCatchBlock(start, end, handler, type);
+    }
+    
+    /**
+     * the caught exception is observed by the handler's first instruction, as the handler's frame,
+     * if there is one, is visited after its label
+     */
+    @Override
+    public void visitLabel(Label label) {
+        super.visitLabel(label);
+        if (handlers.contains(label)) {
+            atHandler = true;
+        }
+    }
+    
+    @Override
+    public void visitInsn(int opcode) {
+        observeCaught();
+        if (opcode == Opcodes.ATHROW) {
+            observe();
+        }
+        super.visitInsn(opcode);
+    }
+    
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        observeCaught();
+        super.visitIntInsn(opcode, operand);
+    }
+    
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        observeCaught();
+        super.visitVarInsn(opcode, var);
+    }
+    
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        observeCaught();
+        super.visitTypeInsn(opcode, type);
+    }
+    
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        observeCaught();
+        super.visitFieldInsn(opcode, owner, name, desc);
+    }
+    
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        observeCaught();
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+    }
+    
+    @Override
+    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+        observeCaught();
+        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+    }
+    
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        observeCaught();
+        super.visitJumpInsn(opcode, label);
+    }
+    
+    @Override
+    public void visitLdcInsn(Object cst) {
+        observeCaught();
+        super.visitLdcInsn(cst);
+    }
+    
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        observeCaught();
+        super.visitIincInsn(var, increment);
+    }
+    
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        observeCaught();
+        super.visitTableSwitchInsn(min, max, dflt, labels);
+    }
+    
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        observeCaught();
+        super.visitLookupSwitchInsn(dflt, keys, labels);
+    }
+    
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+        observeCaught();
+        super.visitMultiANewArrayInsn(desc, dims);
+    }
+    
+    private void observeCaught() {
+        if (atHandler) {
+            atHandler = false;
+            observe();
+        }
+    }
+    
+    /**
+     * observes the exception on top of the stack, leaving it there
+     */
+    private void observe() {
+        super.visitInsn(Opcodes.DUP);
+        super.visitMethodInsn(Opcodes.INVOKESTATIC, THROW_OBSERVER_CLASS_NAME, "observe", "(Ljava/lang/Throwable;)V", false);
+    }
+    
+    @Override
+    public String toString() {
+        return ToString.build(this);
+    }
+}
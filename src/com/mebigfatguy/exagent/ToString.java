@@ -1,7 +1,7 @@
 /*
- * baremetal4j - A java aspect for allowing debugging at the byte code level from source debuggers (as in IDEs)
- * Copyright 2016 MeBigFatGuy.com
- * Copyright 2016 Dave Brosius
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,21 +17,41 @@
  */
 package com.mebigfatguy.exagent;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Set;
 
+import com.mebigfatguy.exagent.rtsupport.ParmRenderer;
+
 /**
- * an automatic toString() builder using reflection
+ * an automatic toString() builder using reflection. The fields of each class are looked up once, and
+ * read through method handles from then on.
  */
 public class ToString {
 
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
     private static class VisitedInfo {
-        Set<Integer> visited = new HashSet<>();
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
         int count = 0;
     }
 
+    /**
+     * the fields to render of a class, with a getter for each, or null for a field that can't be read
+     */
+    private static class Plan {
+        String simpleName;
+        String[] names;
+        MethodHandle[] getters;
+    }
+
     private static final ThreadLocal<VisitedInfo> visited = new ThreadLocal<VisitedInfo>() {
 
         @Override
@@ -40,6 +60,14 @@ public class ToString {
         }
     };
 
+    private static final ClassValue<Plan> plans = new ClassValue<Plan>() {
+
+        @Override
+        protected Plan computeValue(Class<?> cls) {
+            return createPlan(cls);
+        }
+    };
+
     private ToString() {
     }
 
@@ -55,42 +83,61 @@ public class ToString {
         }
     }
 
-    private static String generate(Object o, Set<Integer> visitedObjects) {
+    private static String generate(Object o, Set<Object> visitedObjects) {
 
         StringBuilder sb = new StringBuilder(100);
-        Class<?> cls = o.getClass();
-        int identityHC = System.identityHashCode(o);
-        sb.append(cls.getSimpleName()).append('[').append(identityHC).append("]{");
-
-        if (!visitedObjects.contains(identityHC)) {
-            try {
-                visitedObjects.add(identityHC);
-                String sep = "";
-                for (Field f : cls.getDeclaredFields()) {
-                    if (!f.isSynthetic() && !f.getName().contains("$")) {
-                        sb.append(sep);
-                        sep = ", ";
-                        sb.append(f.getName()).append('=');
-                        try {
-                            f.setAccessible(true);
-                            Object value = f.get(o);
-                            if (value == null) {
-                                sb.append((String) null);
-                            } else if (value.getClass().isArray()) {
-                                sb.append(Arrays.toString((Object[]) value));
-                            } else {
-                                sb.append(value);
-                            }
-                        } catch (SecurityException e) {
-                            sb.append("*SECURITY_EXCEPTION*");
-                        }
-                    }
+        Plan plan = plans.get(o.getClass());
+        sb.append(plan.simpleName).append('[').append(System.identityHashCode(o)).append("]{");
+
+        if (visitedObjects.add(o)) {
+            for (int i = 0; i < plan.names.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(plan.names[i]).append('=');
+                MethodHandle getter = plan.getters[i];
+                if (getter == null) {
+                    sb.append("*SECURITY_EXCEPTION*");
+                    continue;
+                }
+                try {
+                    ParmRenderer.render(sb, (Object) getter.invokeExact(o), 0);
+                } catch (Throwable t) {
+                    sb.append('*').append(t.getClass().getSimpleName()).append('*');
                 }
-            } catch (Exception e) {
             }
         }
 
         sb.append('}');
         return sb.toString();
     }
+
+    private static Plan createPlan(Class<?> cls) {
+        List<String> names = new ArrayList<>();
+        List<MethodHandle> getters = new ArrayList<>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (Field f : cls.getDeclaredFields()) {
+            if (!f.isSynthetic() && !f.getName().contains("$")) {
+                names.add(f.getName());
+                MethodHandle getter;
+                try {
+                    f.setAccessible(true);
+                    getter = lookup.unreflectGetter(f);
+                    if (Modifier.isStatic(f.getModifiers())) {
+                        getter = MethodHandles.dropArguments(getter, 0, Object.class);
+                    }
+                    getter = getter.asType(GETTER_TYPE);
+                } catch (IllegalAccessException | RuntimeException e) {
+                    getter = null;
+                }
+                getters.add(getter);
+            }
+        }
+
+        Plan plan = new Plan();
+        plan.simpleName = cls.getSimpleName();
+        plan.names = names.toArray(new String[names.size()]);
+        plan.getters = getters.toArray(new MethodHandle[getters.size()]);
+        return plan;
+    }
 }
@@ -0,0 +1,47 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+/**
+ * an immutable snapshot of one frame of a thread's stack, linked to the snapshot of the frame below it, so that
+ * a snapshot of a whole stack is just a reference to its top frame, and snapshots taken from the same frames share
+ * them. A stack remembers the snapshot of each of its frames until the frame is popped, so taking another snapshot
+ * of the same frames is a reference copy. The bottom frame links to the context the thread itself was given, if any.
+ */
+public final class AsyncContext {
+
+    final int depth;
+    final int methodId;
+    /** the frame's parameter slots, or null if they weren't captured */
+    final long[] prims;
+    final Object[] refs;
+    final AsyncContext parent;
+
+    AsyncContext(int depth, int methodId, long[] prims, Object[] refs, AsyncContext parent) {
+        this.depth = depth;
+        this.methodId = methodId;
+        this.prims = prims;
+        this.refs = refs;
+        this.parent = parent;
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncContext[methodId=" + methodId + ", depth=" + depth + "]";
+    }
+}
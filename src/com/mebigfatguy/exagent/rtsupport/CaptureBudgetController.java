@@ -0,0 +1,93 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+/**
+ * keeps the parameters held by all threads' frame stacks within a budget of bytes. Threads don't share
+ * a counter, so the total is summed periodically, and while it is over budget, frames pushed capture
+ * according to the degradation policy, returning to full capture once the total falls back under budget.
+ * The budget may be overshot by what is captured between checks.
+ */
+public class CaptureBudgetController implements Runnable {
+
+    private static final long PERIOD_MILLIS = 250L;
+
+    private static Thread controllerThread;
+
+    private long budget;
+    private int degradedCapture;
+
+    private CaptureBudgetController(long budgetBytes, int captureMode) {
+        budget = budgetBytes;
+        degradedCapture = captureMode;
+    }
+
+    /**
+     * starts enforcing the budget, replacing any controller already running
+     *
+     * @param captureMode the FrameStack capture mode to use while over budget
+     */
+    public static synchronized void start(long budgetBytes, int captureMode) {
+        stop();
+        controllerThread = new Thread(new CaptureBudgetController(budgetBytes, captureMode), "exagent-capture-budget");
+        controllerThread.setDaemon(true);
+        controllerThread.start();
+    }
+
+    public static synchronized void stop() {
+        if (controllerThread != null) {
+            controllerThread.interrupt();
+            controllerThread = null;
+        }
+        FrameStack.setDegradedCapture(FrameStack.CAPTURE_ALL);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                Thread.sleep(PERIOD_MILLIS);
+                apply((totalHeld() > budget) ? degradedCapture : FrameStack.CAPTURE_ALL);
+            }
+        } catch (InterruptedException e) {
+            // just exit
+        }
+    }
+
+    /**
+     * sets the capture mode, unless this controller has been stopped, so a stopped one can't leave capture degraded
+     */
+    private static synchronized void apply(int captureMode) {
+        if (controllerThread == Thread.currentThread()) {
+            FrameStack.setDegradedCapture(captureMode);
+        }
+    }
+
+    public static long totalHeld() {
+        long total = 0;
+        for (FrameStack fs : FrameStack.getStacks()) {
+            total += fs.getHeldBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureBudgetController[budget=" + budget + ", held=" + totalHeld() + "]";
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+
+/**
+ * wraps tasks handed to executors, so that exceptions thrown while running them show the frames of the code that
+ * submitted them. With async_context, the probes call wrap on the task just before it is submitted.
+ */
+public class ContextPropagation {
+
+    private ContextPropagation() {
+    }
+
+    public static Runnable wrap(Runnable task) {
+        AsyncContext ctx = EXASupport.getFrameStack().snapshot();
+        return ((ctx == null) || (task == null)) ? task : new ContextRunnable(task, ctx);
+    }
+
+    public static <V> Callable<V> wrap(Callable<V> task) {
+        AsyncContext ctx = EXASupport.getFrameStack().snapshot();
+        return ((ctx == null) || (task == null)) ? task : new ContextCallable<>(task, ctx);
+    }
+
+    public static <T> Supplier<T> wrap(Supplier<T> task) {
+        AsyncContext ctx = EXASupport.getFrameStack().snapshot();
+        return ((ctx == null) || (task == null)) ? task : new ContextSupplier<>(task, ctx);
+    }
+
+    static final class ContextRunnable implements Runnable {
+        private final Runnable task;
+        private final AsyncContext ctx;
+
+        ContextRunnable(Runnable task, AsyncContext ctx) {
+            this.task = task;
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void run() {
+            FrameStack fs = EXASupport.getFrameStack();
+            AsyncContext prevContext = fs.getInheritedContext();
+            int prevDepth = fs.getInheritedDepth();
+            fs.inheritContext(ctx, fs.getDepth());
+            try {
+                task.run();
+            } finally {
+                fs.restoreContext(prevContext, prevDepth);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+
+    static final class ContextCallable<V> implements Callable<V> {
+        private final Callable<V> task;
+        private final AsyncContext ctx;
+
+        ContextCallable(Callable<V> task, AsyncContext ctx) {
+            this.task = task;
+            this.ctx = ctx;
+        }
+
+        @Override
+        public V call() throws Exception {
+            FrameStack fs = EXASupport.getFrameStack();
+            AsyncContext prevContext = fs.getInheritedContext();
+            int prevDepth = fs.getInheritedDepth();
+            fs.inheritContext(ctx, fs.getDepth());
+            try {
+                return task.call();
+            } finally {
+                fs.restoreContext(prevContext, prevDepth);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+
+    static final class ContextSupplier<T> implements Supplier<T> {
+        private final Supplier<T> task;
+        private final AsyncContext ctx;
+
+        ContextSupplier(Supplier<T> task, AsyncContext ctx) {
+            this.task = task;
+            this.ctx = ctx;
+        }
+
+        @Override
+        public T get() {
+            FrameStack fs = EXASupport.getFrameStack();
+            AsyncContext prevContext = fs.getInheritedContext();
+            int prevDepth = fs.getInheritedDepth();
+            fs.inheritContext(ctx, fs.getDepth());
+            try {
+                return task.get();
+            } finally {
+                fs.restoreContext(prevContext, prevDepth);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+}
@@ -18,50 +18,363 @@
 package com.mebigfatguy.exagent.rtsupport;
 
 import java.lang.reflect.Field;
-import java.util.ArrayList;
-import java.util.List;
 
 import com.mebigfatguy.exagent.MethodInfo;
 
 public class EXASupport {
     
-    public static final ThreadLocal<List<MethodInfo>> METHOD_INFO = new ThreadLocal<List<MethodInfo>>() {
+    public static final ThreadLocal<FrameStack> FRAME_STACK = new ThreadLocal<FrameStack>() {
         @Override 
-        protected List<MethodInfo> initialValue() {
-            return new ArrayList<>();
+        protected FrameStack initialValue() {
+            return new FrameStack(Thread.currentThread());
         }
     };
     
+    /** the stack a thread has borrowed from the pool, with pooled thread state */
+    private static final ThreadLocal<FrameStack> POOLED_FRAME_STACK = new ThreadLocal<>();
+    
+    private static final int THREAD_TABLE_SIZE = 4096;
+    private static final String UNCAPTURED = "<not captured>";
+    private static final String DROPPED = "<dropped>";
+    
+    /**
+     * a cache of frame stacks indexed by thread id, to avoid probing the ThreadLocal map. Threads whose
+     * ids collide fall back to the ThreadLocal, and a dead thread's stack lingers until its slot is reused.
+     * Entries are published racily, which is safe as the owner of a stack that isn't pooled never changes, and is checked on every read.
+     */
+    private static final FrameStack[] THREAD_TABLE = new FrameStack[THREAD_TABLE_SIZE];
+    
+    private static final Field DETAIL_MESSAGE_FIELD = getMessageField();
+    
+    private static boolean indexedLookup;
+    private static boolean pooledLookup;
+    private static int parmSizeLimit;
+    private static int maxFrames;
+    private static int maxMessageSize;
+    private static boolean embellish = true;
+    
     private EXASupport() {
     }
     
-    public static void embellishMessage(Throwable t) throws IllegalAccessException, NoSuchFieldException {
-        StringBuilder msg = new StringBuilder();
-        for (MethodInfo mi : METHOD_INFO.get()) {
-            msg.insert(0, mi.toString());
-            msg.insert(0, "\n");
+    public static void setParmSizeLimit(int limit) {
+        parmSizeLimit = limit;
+    }
+    
+    /**
+     * @param frames the number of innermost frames to add to a message, or 0 for all of them
+     */
+    public static void setMaxFrames(int frames) {
+        maxFrames = frames;
+    }
+    
+    /**
+     * @param size the number of characters an embellished message is truncated to, or 0 for no limit
+     */
+    public static void setMaxMessageSize(int size) {
+        maxMessageSize = size;
+    }
+    
+    /**
+     * @param rewrite whether messages are rewritten, rather than the exception just being published to the report sink
+     */
+    public static void setEmbellish(boolean rewrite) {
+        embellish = rewrite;
+    }
+    
+    /**
+     * @return whether messages can be rewritten, which they can't when Throwable.detailMessage isn't accessible
+     */
+    public static boolean isMessageWritable() {
+        return DETAIL_MESSAGE_FIELD != null;
+    }
+    
+    public static void setIndexedLookup(boolean indexed) {
+        indexedLookup = indexed;
+    }
+    
+    /**
+     * @param pooled whether threads borrow a stack from the FrameStackPool while running instrumented code, rather than each having its own
+     */
+    public static void setPooledLookup(boolean pooled) {
+        pooledLookup = pooled;
+    }
+    
+    /**
+     * called once on entry to each instrumented method, the result being held in a local for the exit paths
+     */
+    public static FrameStack getFrameStack() {
+        if (pooledLookup) {
+            return getPooledFrameStack();
+        }
+        if (!indexedLookup) {
+            return FRAME_STACK.get();
+        }
+        
+        Thread t = Thread.currentThread();
+        int index = (int) t.getId() & (THREAD_TABLE_SIZE - 1);
+        FrameStack fs = THREAD_TABLE[index];
+        if ((fs == null) || (fs.getOwner() != t)) {
+            fs = FRAME_STACK.get();
+            THREAD_TABLE[index] = fs;
+        }
+        return fs;
+    }
+    
+    private static FrameStack getPooledFrameStack() {
+        FrameStack fs = POOLED_FRAME_STACK.get();
+        if (fs == null) {
+            fs = FrameStackPool.borrow(Thread.currentThread());
+            POOLED_FRAME_STACK.set(fs);
+        }
+        return fs;
+    }
+    
+    /**
+     * returns a pooled stack, once its thread has exited its outermost instrumented method
+     */
+    static void releaseFrameStack(FrameStack fs) {
+        // disowned first, so that a popTo through a method's stale local can tell the stack is no longer its own
+        fs.adopt(null);
+        POOLED_FRAME_STACK.remove();
+        FrameStackPool.release(fs);
+    }
+    
+    public static void embellishMessage(Throwable t) {
+        embellishMessage(t, getFrameStack());
+    }
+    
+    /**
+     * adds the captured frames to the exception's message. This is called by the probes right before
+     * a throw, and so never throws itself; if the message can't be changed, it is left as is. The frames
+     * are first published to the report sink, if one is running, and as a flight recorder event, if enabled. While an exception storm is limited,
+     * repeats of the same throw just get a reference to the fingerprint, and counts, and aren't published.
+     */
+    public static void embellishMessage(Throwable t, FrameStack fs) {
+        if (fs.getOwner() != Thread.currentThread()) {
+            // a pooled stack the throwing method has already returned, as when it caught its own earlier throw
+            fs = getFrameStack();
+        }
+        int depth = fs.getDepth();
+        int lastFrame = ((maxFrames > 0) && (depth > maxFrames)) ? depth - maxFrames : 0;
+        
+        ExceptionFingerprint fp = null;
+        if (StormGuard.isEnabled()) {
+            fp = StormGuard.fingerprint(t, fs, Math.max(lastFrame, fs.getLostFrames()));
+            int count = StormGuard.check(fp);
+            if (count > 0) {
+                abbreviateMessage(t, fp, count);
+                return;
+            }
+        }
+        
+        ReportSink.publish(t, fs);
+        if (JfrSink.isEnabled()) {
+            JfrSink.publish(t, fs, depth, lastFrame, fp);
+        }
+        if (!embellish || (DETAIL_MESSAGE_FIELD == null)) {
+            return;
+        }
+        
+        try {
+            StringBuilder msg = new StringBuilder(256);
+            msg.append(t.getMessage());
+            if (fp != null) {
+                msg.append("\n[exagent ").append(fp.getReference()).append(']');
+            }
+            
+            renderFrames(msg, fs, depth, lastFrame);
+            DETAIL_MESSAGE_FIELD.set(t, msg.toString());
+            fs.embellished();
+        } catch (Exception e) {
+            // swallow it
+        }
+    }
+    
+    /**
+     * renders the frames from the innermost down to lastFrame, each on a new line, followed by how many more there
+     * are, and the frames of the thread that submitted the running task, stopping at the maximum message size
+     */
+    static void renderFrames(StringBuilder sb, FrameStack fs, int depth, int lastFrame) {
+        int f = depth - 1;
+        // frames rendered may push frames, overwriting outer ones when at the frame limit
+        for (; (f >= lastFrame) && (f >= fs.getLostFrames()); f--) {
+            if ((maxMessageSize > 0) && (sb.length() >= maxMessageSize)) {
+                break;
+            }
+            sb.append('\n');
+            render(sb, fs, f);
+        }
+        if ((f >= 0) && ((maxMessageSize <= 0) || (sb.length() < maxMessageSize))) {
+            sb.append("\n... ").append(f + 1).append(" more");
+        }
+        AsyncContext ctx = fs.getInheritedContext();
+        if ((ctx != null) && ((maxMessageSize <= 0) || (sb.length() < maxMessageSize))) {
+            renderContext(sb, fs, ctx);
+        }
+        
+        if ((maxMessageSize > 0) && (sb.length() > maxMessageSize)) {
+            sb.setLength(maxMessageSize);
+        }
+    }
+    
+    private static void abbreviateMessage(Throwable t, ExceptionFingerprint fp, int count) {
+        if (!embellish || (DETAIL_MESSAGE_FIELD == null)) {
+            return;
+        }
+        
+        try {
+            String msg = t.getMessage() + "\n[exagent " + fp.getReference() + " repeated, " + count + " times in "
+                    + StormGuard.getWindowMillis() + "ms, " + fp.getTotal() + " in total]";
+            DETAIL_MESSAGE_FIELD.set(t, msg);
+        } catch (Exception e) {
+            // swallow it
         }
-        msg.insert(0, t.getMessage());
-
-        Field f = getMessageField(t);
-        f.set(t, msg.toString());
     }
     
     public static void popMethodInfo(int toDepth) {
-        List<MethodInfo> mi = METHOD_INFO.get();
-        while (!mi.isEmpty() && (mi.size() > toDepth)) {
-            mi.remove(mi.size() - 1);
+        getFrameStack().popTo(toDepth);
+    }
+    
+    /**
+     * renders one frame. Rendering parameters may call back into instrumented code, but that only
+     * pushes frames above this one, so the frame's slots remain intact, unless the frame limit is reached.
+     */
+    private static void render(StringBuilder sb, FrameStack fs, int frame) {
+        MethodInfo mi = MethodRegistry.get(fs.getMethodId(frame));
+        sb.append(mi.getCls()).append('.').append(mi.getName()).append('(');
+        
+        int slot = fs.getSlotBase(frame);
+        int limit = fs.getSlotLimit(frame);
+        if (((slot == limit) || !fs.hasSlots(frame)) && !mi.getParmSignatures().isEmpty()) {
+            sb.append(UNCAPTURED).append(')');
+            return;
+        }
+        
+        String sep = "";
+        for (String sig : mi.getParmSignatures()) {
+            if (slot >= limit) {
+                break;
+            }
+            Object parm = decodeSlot(fs.getPrim(slot), fs.getRef(slot), sig.charAt(0));
+            slot++;
+            sb.append(sep).append((parm == FrameStack.DROPPED) ? DROPPED : renderParm(parm, fs));
+            sep = ", ";
         }
+        sb.append(')');
     }
     
-    private static Field getMessageField(Throwable t) throws NoSuchFieldException {
-        Class<?> c = t.getClass();
-        while (c != Throwable.class) {
-            c = c.getSuperclass();
+    /**
+     * renders the frames of the thread that submitted the task being run, after the task's own frames
+     */
+    private static void renderContext(StringBuilder sb, FrameStack fs, AsyncContext ctx) {
+        sb.append("\n... submitted from");
+        int rendered = 0;
+        for (; ctx != null; ctx = ctx.parent) {
+            if (((maxFrames > 0) && (rendered >= maxFrames)) || ((maxMessageSize > 0) && (sb.length() >= maxMessageSize))) {
+                break;
+            }
+            sb.append('\n');
+            render(sb, fs, ctx);
+            rendered++;
         }
         
-        Field f = c.getDeclaredField("detailMessage");
-        f.setAccessible(true);
-        return f;
+        int remaining = 0;
+        for (; ctx != null; ctx = ctx.parent) {
+            remaining++;
+        }
+        if ((remaining > 0) && ((maxMessageSize <= 0) || (sb.length() < maxMessageSize))) {
+            sb.append("\n... ").append(remaining).append(" more");
+        }
+    }
+    
+    private static void render(StringBuilder sb, FrameStack fs, AsyncContext ctx) {
+        MethodInfo mi = MethodRegistry.get(ctx.methodId);
+        sb.append(mi.getCls()).append('.').append(mi.getName()).append('(');
+        
+        if ((ctx.refs == null) && !mi.getParmSignatures().isEmpty()) {
+            sb.append(UNCAPTURED).append(')');
+            return;
+        }
+        
+        String sep = "";
+        int slot = 0;
+        for (String sig : mi.getParmSignatures()) {
+            if (slot >= ctx.refs.length) {
+                break;
+            }
+            Object parm = decodeSlot(ctx.prims[slot], ctx.refs[slot], sig.charAt(0));
+            slot++;
+            sb.append(sep).append((parm == FrameStack.DROPPED) ? DROPPED : renderParm(parm, fs));
+            sep = ", ";
+        }
+        sb.append(')');
+    }
+    
+    private static Object decodeSlot(long prim, Object ref, char sigType) {
+        switch (sigType) {
+            case 'Z':
+                return Boolean.valueOf(prim != 0);
+            case 'C':
+                return Character.valueOf((char) prim);
+            case 'B':
+            case 'S':
+            case 'I':
+                return Integer.valueOf((int) prim);
+            case 'J':
+                return Long.valueOf(prim);
+            case 'F':
+                return Float.valueOf(Float.intBitsToFloat((int) prim));
+            case 'D':
+                return Double.valueOf(Double.longBitsToDouble(prim));
+            default:
+                return ref;
+        }
+    }
+    
+    /**
+     * converts a parameter to a string, limited to the parm_size_limit. This is called by the probes
+     * on method entry for eager capture, otherwise only when an exception is thrown.
+     */
+    public static String renderParm(Object parm) {
+        return renderParm(parm, getFrameStack());
+    }
+    
+    /**
+     * converts a parameter to a string, rendering into the frame stack's buffer, so that only as much of
+     * the parameter as fits the parm_size_limit is formatted
+     */
+    static String renderParm(Object parm, FrameStack fs) {
+        if (parm instanceof String) {
+            String s = (String) parm;
+            return ((parmSizeLimit > 0) && (s.length() > parmSizeLimit)) ? s.substring(0, parmSizeLimit) : s;
+        }
+        
+        StringBuilder sb = fs.borrowRenderBuffer();
+        try {
+            ParmRenderer.render(sb, parm, parmSizeLimit);
+            if ((parmSizeLimit > 0) && (sb.length() > parmSizeLimit)) {
+                sb.setLength(parmSizeLimit);
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            String value = "*" + e.getClass().getSimpleName() + "*";
+            return ((parmSizeLimit > 0) && (value.length() > parmSizeLimit)) ? value.substring(0, parmSizeLimit) : value;
+        } finally {
+            fs.returnRenderBuffer(sb);
+        }
+    }
+    
+    /**
+     * resolves Throwable.detailMessage once, returning null if it isn't accessible, such as on
+     * java 9+ without --add-opens java.base/java.lang, in which case messages are left alone
+     */
+    private static Field getMessageField() {
+        try {
+            Field f = Throwable.class.getDeclaredField("detailMessage");
+            f.setAccessible(true);
+            return f;
+        } catch (Exception e) {
+            return null;
+        }
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * the occurrences of exceptions of one type thrown from one sequence of frames, counted in total and within
+ * the current window, which starts over once it is older than the storm window
+ */
+public class ExceptionFingerprint {
+
+    private final long hash;
+    private final String exceptionClass;
+    private final int methodId;
+    private final long firstSeen;
+    private volatile long lastSeen;
+    private final AtomicLong windowStart;
+    private final AtomicInteger windowCount = new AtomicInteger();
+    private final LongAdder total = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+
+    ExceptionFingerprint(long hash, String exceptionClass, int methodId) {
+        this.hash = hash;
+        this.exceptionClass = exceptionClass;
+        this.methodId = methodId;
+        firstSeen = System.currentTimeMillis();
+        lastSeen = firstSeen;
+        windowStart = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * counts an occurrence
+     *
+     * @return the number of occurrences in the current window, including this one
+     */
+    int occurred(long now, long windowNanos) {
+        long start = windowStart.get();
+        if ((now - start >= windowNanos) && windowStart.compareAndSet(start, now)) {
+            // racing throws may be counted in either window
+            windowCount.set(0);
+        }
+        lastSeen = System.currentTimeMillis();
+        total.increment();
+        return windowCount.incrementAndGet();
+    }
+
+    void suppressed() {
+        suppressed.increment();
+    }
+
+    long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return the short reference that identifies the fingerprint in messages
+     */
+    public String getReference() {
+        return Long.toHexString(hash);
+    }
+
+    public String getExceptionClass() {
+        return exceptionClass;
+    }
+
+    /**
+     * @return the id of the innermost frame's method, or -1 if no frames were captured
+     */
+    public int getMethodId() {
+        return methodId;
+    }
+
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public int getWindowCount() {
+        return windowCount.get();
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    /**
+     * @return the number of occurrences whose messages were abbreviated, as over the storm limit
+     */
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ExceptionFingerprint[" + getReference() + ", " + exceptionClass + ", total=" + total.sum() + "]";
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+
+/**
+ * the captured frames of an exception, as it is thrown. Along with the usual enabled and stackTrace settings,
+ * recordings can set minFrames, to only keep the exceptions thrown with at least that many captured frames.
+ */
+@Name("com.mebigfatguy.exagent.ExceptionFrames")
+@Label("Exception Frames")
+@Category("exagent")
+@Description("The parameters of the methods an exception was thrown through, as captured by exagent")
+public class ExceptionFramesEvent extends Event {
+
+    @Label("Exception Class")
+    Class<?> exceptionClass;
+
+    @Label("Message")
+    @Description("The exception's message, before any embellishment")
+    String message;
+
+    @Label("Frames")
+    @Description("Each captured frame, innermost first, on its own line")
+    String frames;
+
+    @Label("Frame Count")
+    int frameCount;
+
+    @Label("Fingerprint")
+    @Description("The fingerprint reference of the exception, when storms are being limited")
+    String fingerprint;
+
+    @Label("Minimum Frames")
+    @Description("The fewest captured frames an exception must have to be recorded")
+    @Name("minFrames")
+    @SettingDefinition
+    protected boolean minFrames(MinFramesSetting setting) {
+        return frameCount >= setting.getMinFrames();
+    }
+}
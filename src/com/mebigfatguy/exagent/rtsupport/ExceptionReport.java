@@ -0,0 +1,86 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+/**
+ * a copy of the frames captured when an exception is thrown, taken on the throwing thread, so that it can be
+ * rendered and logged elsewhere. Only method ids and raw slot values are copied, references are rendered by
+ * the consumer, and so, as with lazy capture, show the state of mutable parameters when they are rendered.
+ */
+public class ExceptionReport {
+
+    final long time;
+    final long threadId;
+    final String threadName;
+    final String exceptionClass;
+    final String message;
+    final int[] methodIds;
+    /** the number of parameter slots of each frame, or -1 if the frame's parameters weren't captured */
+    final int[] slotCounts;
+    final long[] prims;
+    final Object[] refs;
+    final int omittedFrames;
+
+    private ExceptionReport(Throwable t, FrameStack fs, int maxFrames) {
+        Thread thread = Thread.currentThread();
+        time = System.currentTimeMillis();
+        threadId = thread.getId();
+        threadName = thread.getName();
+        exceptionClass = t.getClass().getName();
+        message = t.getMessage();
+
+        int depth = fs.getDepth();
+        int lastFrame = Math.max(fs.getLostFrames(), ((maxFrames > 0) && (depth > maxFrames)) ? depth - maxFrames : 0);
+        int frameCount = Math.max(0, depth - lastFrame);
+        methodIds = new int[frameCount];
+        slotCounts = new int[frameCount];
+
+        int totalSlots = 0;
+        for (int i = 0; i < frameCount; i++) {
+            int f = depth - 1 - i;
+            methodIds[i] = fs.getMethodId(f);
+            int count = fs.getSlotLimit(f) - fs.getSlotBase(f);
+            slotCounts[i] = ((count > 0) && fs.hasSlots(f)) ? count : -1;
+            totalSlots += Math.max(0, slotCounts[i]);
+        }
+
+        prims = new long[totalSlots];
+        refs = new Object[totalSlots];
+        int s = 0;
+        for (int i = 0; i < frameCount; i++) {
+            int base = fs.getSlotBase(depth - 1 - i);
+            for (int j = 0; j < slotCounts[i]; j++) {
+                prims[s] = fs.getPrim(base + j);
+                refs[s++] = fs.getRef(base + j);
+            }
+        }
+        omittedFrames = depth - frameCount;
+    }
+
+    /**
+     * @param maxFrames the number of innermost frames to copy, or 0 for all of them
+     */
+    static ExceptionReport capture(Throwable t, FrameStack fs, int maxFrames) {
+        return new ExceptionReport(t, fs, maxFrames);
+    }
+
+    @Override
+    public String toString() {
+        return "ExceptionReport[" + exceptionClass + ", thread=" + threadName + ", frames=" + methodIds.length + "]";
+    }
+}
@@ -0,0 +1,640 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * a per thread shadow stack of the instrumented methods currently executing, along with their
+ * parameters. Frames and parameter slots are held in parallel arrays that only grow, so that
+ * pushing and popping a frame is just an index bump, and no allocation occurs on the hot path.
+ * A parameter slot holds primitives in the prims array, and references in the refs array.
+ * When sampling, frames of calls that aren't sampled are still pushed, but hold no parameters.
+ * <p>
+ * With a frame limit, the arrays stop growing at the limit, and are used as rings, indexed by depth
+ * and slot modulo their size, so that the innermost frames are kept, and the outermost ones are
+ * overwritten. Depths and slot numbers keep counting past the limit, so popTo works as usual; frames
+ * below lostFrames and slots below lostSlots have been overwritten.
+ */
+public class FrameStack {
+
+    /** capture all parameters of a frame */
+    public static final int CAPTURE_ALL = 0;
+    /** capture only primitive parameters, references being dropped */
+    public static final int CAPTURE_PRIMITIVES = 1;
+    /** capture no parameters, just which method the frame is for */
+    public static final int CAPTURE_IDENTITY = 2;
+
+    /** stored in place of a reference parameter that wasn't captured */
+    static final Object DROPPED = new Object();
+
+    private static final int INITIAL_FRAMES = 32;
+    private static final int INITIAL_SLOTS = 128;
+    private static final int SLOTS_PER_FRAME = 8;
+    private static final int INITIAL_RENDER_BUFFER = 64;
+    /** a render buffer grown past this is discarded after use, rather than held onto */
+    private static final int MAX_RENDER_BUFFER = 16384;
+
+    /** the registered stacks are pruned of those collected once they reach this many, and then twice the survivors */
+    private static final int MIN_PRUNE_THRESHOLD = 1024;
+
+    private static final List<WeakReference<FrameStack>> STACKS = new ArrayList<>();
+    private static int pruneThreshold = MIN_PRUNE_THRESHOLD;
+
+    private static volatile int sampleInterval = 1;
+    private static boolean randomSampling;
+    private static volatile int degradedCapture = CAPTURE_ALL;
+    private static int frameLimit;
+
+    private Thread owner;
+    private final boolean pooled;
+    private final int maxFrameCapacity;
+    private final int maxSlotCapacity;
+
+    private int[] methodIds;
+    private int[] slotBases;
+    private int frameMask;
+    private int depth;
+    private int lostFrames;
+
+    private long[] prims;
+    private Object[] refs;
+    private int slotMask;
+    private int slotTop;
+    private int lostSlots;
+
+    private int capture = CAPTURE_ALL;
+    private int countdown;
+    private int seed;
+    private long recordedFrames;
+
+    private StringBuilder renderBuffer;
+    private boolean renderBufferLent;
+
+    /** the snapshot of each frame, as taken by snapshot(), indexed by depth modulo their size */
+    private AsyncContext[] snapshots;
+    /** the depth below which all frames with a snapshot lie */
+    private int snapshotTop;
+    private AsyncContext inheritedContext;
+    private int inheritedDepth;
+
+    private long pushedFrames;
+    private long poppedFrames;
+    private long releasedSlots;
+    private long renderedChars;
+    private long embellishments;
+    private long overflowedFrames;
+    private int maxDepth;
+
+    public FrameStack(Thread owner) {
+        this(owner, false);
+    }
+
+    /**
+     * @param pooled whether the stack is returned to the FrameStackPool when emptied
+     */
+    FrameStack(Thread owner, boolean pooled) {
+        this.owner = owner;
+        this.pooled = pooled;
+        seed = System.identityHashCode(this) | 1;
+        if (frameLimit > 0) {
+            // a frame with more parameters than its share of the slots overwrites its own, and shows as not captured
+            maxFrameCapacity = powerOfTwo(frameLimit);
+            maxSlotCapacity = maxFrameCapacity * SLOTS_PER_FRAME;
+        } else {
+            maxFrameCapacity = Integer.MAX_VALUE;
+            maxSlotCapacity = Integer.MAX_VALUE;
+        }
+        int frames = Math.min(INITIAL_FRAMES, maxFrameCapacity);
+        methodIds = new int[frames];
+        slotBases = new int[frames];
+        frameMask = frames - 1;
+        int slots = Math.min(INITIAL_SLOTS, maxSlotCapacity);
+        prims = new long[slots];
+        refs = new Object[slots];
+        slotMask = slots - 1;
+        synchronized (STACKS) {
+            if (STACKS.size() >= pruneThreshold) {
+                // with many short lived threads, stacks of dead threads would otherwise pile up until metrics are read
+                pruneStacks(null);
+                pruneThreshold = Math.max(MIN_PRUNE_THRESHOLD, STACKS.size() * 2);
+            }
+            STACKS.add(new WeakReference<>(this));
+        }
+    }
+
+    /**
+     * @param interval record the parameters of one out of every interval calls
+     * @param random whether to pick calls to record at random, rather than strictly every interval calls
+     */
+    public static void setSampling(int interval, boolean random) {
+        randomSampling = random;
+        sampleInterval = Math.max(1, interval);
+    }
+
+    public static int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * @param limit the number of innermost frames each thread keeps, rounded up to a power of two, or 0 to keep
+     * all of them. This applies to the stacks of threads that start instrumented code after it is set.
+     */
+    public static void setFrameLimit(int limit) {
+        frameLimit = limit;
+    }
+
+    /**
+     * @param captureMode what frames pushed from now on capture, one of the CAPTURE constants, as lowered when
+     * over the capture budget
+     */
+    public static void setDegradedCapture(int captureMode) {
+        degradedCapture = captureMode;
+    }
+
+    public static int getDegradedCapture() {
+        return degradedCapture;
+    }
+
+    /**
+     * @return the live frame stacks, whose counters are only approximate, as they are read from other threads
+     */
+    public static List<FrameStack> getStacks() {
+        synchronized (STACKS) {
+            List<FrameStack> stacks = new ArrayList<>(STACKS.size());
+            pruneStacks(stacks);
+            return stacks;
+        }
+    }
+
+    /**
+     * removes the collected stacks, adding the live ones to the list, if given. Called with STACKS locked.
+     */
+    private static void pruneStacks(List<FrameStack> live) {
+        Iterator<WeakReference<FrameStack>> it = STACKS.iterator();
+        while (it.hasNext()) {
+            FrameStack fs = it.next().get();
+            if (fs == null) {
+                it.remove();
+            } else if (live != null) {
+                live.add(fs);
+            }
+        }
+    }
+
+    /**
+     * @return the thread using the stack, or for a pooled stack, null while it is in the pool
+     */
+    public Thread getOwner() {
+        return owner;
+    }
+
+    /**
+     * hands a pooled stack, which is empty, to the thread borrowing it, or with null, takes it back for the pool
+     */
+    void adopt(Thread thread) {
+        owner = thread;
+    }
+
+    /**
+     * pushes a new frame, whose parameters are then added with the put methods
+     *
+     * @return the depth before the push, to be passed to popTo when the method exits
+     */
+    public int push(int methodId) {
+        if (depth >= methodIds.length) {
+            frameOverflow();
+        }
+
+        int f = depth & frameMask;
+        methodIds[f] = methodId;
+        slotBases[f] = slotTop;
+        int interval = sampleInterval;
+        capture = ((interval == 1) || sample(interval)) ? degradedCapture : CAPTURE_IDENTITY;
+        if (capture != CAPTURE_IDENTITY) {
+            recordedFrames++;
+        }
+        pushedFrames++;
+        if (depth >= maxDepth) {
+            maxDepth = depth + 1;
+        }
+        return depth++;
+    }
+
+    public void putInt(int value) {
+        if (capture == CAPTURE_IDENTITY) {
+            return;
+        }
+        if (slotTop >= prims.length) {
+            slotOverflow();
+        }
+        prims[slotTop++ & slotMask] = value;
+    }
+
+    public void putLong(long value) {
+        if (capture == CAPTURE_IDENTITY) {
+            return;
+        }
+        if (slotTop >= prims.length) {
+            slotOverflow();
+        }
+        prims[slotTop++ & slotMask] = value;
+    }
+
+    public void putFloat(float value) {
+        putInt(Float.floatToRawIntBits(value));
+    }
+
+    public void putDouble(double value) {
+        putLong(Double.doubleToRawLongBits(value));
+    }
+
+    public void putRef(Object value) {
+        if (capture != CAPTURE_ALL) {
+            if (capture == CAPTURE_PRIMITIVES) {
+                storeRef(DROPPED);
+            }
+            return;
+        }
+        storeRef(value);
+    }
+
+    /**
+     * stores the parameter already converted to a string, as eager capture does, but only if the frame is sampled
+     */
+    public void putRendered(Object value) {
+        if (capture != CAPTURE_ALL) {
+            putRef(value);
+            return;
+        }
+        // rendering may call instrumented code, whose frames decide their own capture, so this frame's is put back
+        int frameCapture = capture;
+        String rendered = EXASupport.renderParm(value, this);
+        capture = frameCapture;
+        renderedChars += rendered.length();
+        storeRef(rendered);
+    }
+
+    /**
+     * lends the thread's buffer for rendering a parameter, or a new one if it is already lent, as rendering
+     * a parameter may call instrumented code that renders others
+     */
+    StringBuilder borrowRenderBuffer() {
+        if (renderBufferLent) {
+            return new StringBuilder(INITIAL_RENDER_BUFFER);
+        }
+        if (renderBuffer == null) {
+            renderBuffer = new StringBuilder(INITIAL_RENDER_BUFFER);
+        }
+        renderBufferLent = true;
+        renderBuffer.setLength(0);
+        return renderBuffer;
+    }
+
+    void returnRenderBuffer(StringBuilder sb) {
+        if (sb == renderBuffer) {
+            renderBufferLent = false;
+            if (sb.capacity() > MAX_RENDER_BUFFER) {
+                renderBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * removes all frames at or above the given depth, dropping references to their parameters
+     */
+    public void popTo(int toDepth) {
+        if ((toDepth < 0) || (toDepth >= depth)) {
+            return;
+        }
+        // a throw pops a pooled stack, which may return it to the pool, before the method's catch-all pops it
+        // again through its local, by which time another thread may have borrowed it
+        if (pooled && (owner != Thread.currentThread())) {
+            return;
+        }
+
+        poppedFrames += depth - toDepth;
+        if (toDepth >= lostFrames) {
+            int f = toDepth & frameMask;
+            int toSlot = slotBases[f];
+            releasedSlots += slotTop - toSlot;
+            clearRefs(toSlot, slotTop);
+            slotTop = toSlot;
+            lostSlots = Math.min(lostSlots, toSlot);
+        } else {
+            // the frame popped to was overwritten, as were all below it, so no parameters remain,
+            // and the slots can start over
+            if (slotTop > lostSlots) {
+                releasedSlots += Math.min(slotTop - lostSlots, refs.length);
+                Arrays.fill(refs, null);
+            }
+            slotTop = 0;
+            lostSlots = 0;
+            lostFrames = toDepth;
+        }
+        depth = toDepth;
+        if (snapshotTop > toDepth) {
+            clearSnapshots(toDepth);
+        }
+
+        if (pooled && (toDepth == 0) && (inheritedContext == null)) {
+            EXASupport.releaseFrameStack(this);
+        }
+    }
+
+    /**
+     * takes an immutable snapshot of the frames, along with the context they inherited. Each frame's snapshot is
+     * remembered until it is popped, so after the first, snapshots of the same frames cost a reference copy.
+     *
+     * @return the snapshot, or null if there are no frames, and no inherited context
+     */
+    public AsyncContext snapshot() {
+        int top = depth - 1;
+        int bottom = Math.max(lostFrames, inheritedDepth);
+        if (top < bottom) {
+            return inheritedContext;
+        }
+        if ((snapshots == null) || (snapshots.length != methodIds.length)) {
+            snapshots = new AsyncContext[methodIds.length];
+        }
+
+        AsyncContext ctx = getSnapshot(top);
+        if (ctx != null) {
+            return ctx;
+        }
+
+        int f = top;
+        while ((f > bottom) && (getSnapshot(f - 1) == null)) {
+            f--;
+        }
+        ctx = (f > bottom) ? getSnapshot(f - 1) : inheritedContext;
+        for (; f <= top; f++) {
+            long[] framePrims = null;
+            Object[] frameRefs = null;
+            int base = getSlotBase(f);
+            int count = getSlotLimit(f) - base;
+            if ((count > 0) && hasSlots(f)) {
+                framePrims = new long[count];
+                frameRefs = new Object[count];
+                for (int i = 0; i < count; i++) {
+                    framePrims[i] = prims[(base + i) & slotMask];
+                    frameRefs[i] = refs[(base + i) & slotMask];
+                }
+            }
+            ctx = new AsyncContext(f, getMethodId(f), framePrims, frameRefs, ctx);
+            snapshots[f & (snapshots.length - 1)] = ctx;
+        }
+        snapshotTop = depth;
+        return ctx;
+    }
+
+    private AsyncContext getSnapshot(int frame) {
+        AsyncContext ctx = snapshots[frame & (snapshots.length - 1)];
+        return ((ctx != null) && (ctx.depth == frame)) ? ctx : null;
+    }
+
+    private void clearSnapshots(int toDepth) {
+        int end = Math.min(snapshotTop, toDepth + snapshots.length);
+        for (int d = toDepth; d < end; d++) {
+            snapshots[d & (snapshots.length - 1)] = null;
+        }
+        snapshotTop = toDepth;
+    }
+
+    /**
+     * @return the snapshot of the thread that submitted the task being run, or null if not running a submitted task
+     */
+    public AsyncContext getInheritedContext() {
+        return inheritedContext;
+    }
+
+    /**
+     * @return the depth at which the task being run started
+     */
+    public int getInheritedDepth() {
+        return inheritedDepth;
+    }
+
+    /**
+     * starts running a task submitted with the given context, whose frames are then reported below those of the task
+     */
+    void inheritContext(AsyncContext ctx, int atDepth) {
+        inheritedContext = ctx;
+        inheritedDepth = atDepth;
+    }
+
+    /**
+     * finishes running a task, restoring the context from before it, which for a pooled stack that is then empty, returns it
+     */
+    void restoreContext(AsyncContext ctx, int atDepth) {
+        inheritedContext = ctx;
+        inheritedDepth = atDepth;
+        if (pooled && (depth == 0) && (ctx == null) && (owner == Thread.currentThread())) {
+            EXASupport.releaseFrameStack(this);
+        }
+    }
+
+    /**
+     * @return the number of frames whose parameters have been recorded
+     */
+    public long getRecordedFrames() {
+        return recordedFrames;
+    }
+
+    public long getPushedFrames() {
+        return pushedFrames;
+    }
+
+    public long getPoppedFrames() {
+        return poppedFrames;
+    }
+
+    /**
+     * @return the number of frames overwritten, as the stack was deeper than the frame limit
+     */
+    public long getOverflowedFrames() {
+        return overflowedFrames;
+    }
+
+    /**
+     * @return an estimate of the bytes of parameters captured by the frames popped so far, counting each
+     * slot as 8 bytes, plus 2 bytes per character of the parameters rendered on entry
+     */
+    public long getCapturedBytes() {
+        return (releasedSlots * 8) + (renderedChars * 2);
+    }
+
+    /**
+     * @return an estimate, on the same terms as getCapturedBytes, of the parameters currently held, counting
+     * the strings held, whether rendered or passed in. This is computed when asked for, rather than kept up on
+     * every push, and is read racily from other threads, so is only approximate.
+     */
+    public long getHeldBytes() {
+        Object[] heldRefs = refs;
+        int top = slotTop;
+        int held = Math.min(top - lostSlots, heldRefs.length);
+        if (held <= 0) {
+            return 0;
+        }
+
+        long chars = 0;
+        int mask = heldRefs.length - 1;
+        for (int slot = top - held; slot < top; slot++) {
+            Object ref = heldRefs[slot & mask];
+            if (ref instanceof String) {
+                chars += ((String) ref).length();
+            }
+        }
+        return (held * 8L) + (chars * 2L);
+    }
+
+    void embellished() {
+        embellishments++;
+    }
+
+    public long getEmbellishments() {
+        return embellishments;
+    }
+
+    /**
+     * @return the deepest the stack has been
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the number of outermost frames that have been overwritten, and so can't be rendered
+     */
+    public int getLostFrames() {
+        return lostFrames;
+    }
+
+    /**
+     * @return the id of the frame's method, as assigned by {@link MethodRegistry}
+     */
+    public int getMethodId(int frame) {
+        return methodIds[frame & frameMask];
+    }
+
+    public int getSlotBase(int frame) {
+        return slotBases[frame & frameMask];
+    }
+
+    public int getSlotLimit(int frame) {
+        return (frame + 1 < depth) ? slotBases[(frame + 1) & frameMask] : slotTop;
+    }
+
+    /**
+     * @return whether the frame's parameter slots are intact, rather than overwritten by inner frames
+     */
+    public boolean hasSlots(int frame) {
+        return slotBases[frame & frameMask] >= lostSlots;
+    }
+
+    public long getPrim(int slot) {
+        return prims[slot & slotMask];
+    }
+
+    public Object getRef(int slot) {
+        return refs[slot & slotMask];
+    }
+
+    private void storeRef(Object value) {
+        if (slotTop >= refs.length) {
+            slotOverflow();
+        }
+        refs[slotTop++ & slotMask] = value;
+    }
+
+    private boolean sample(int interval) {
+        if (randomSampling) {
+            // xorshift
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            return ((seed >>> 1) % interval) == 0;
+        }
+
+        if (--countdown <= 0) {
+            countdown = interval;
+            return true;
+        }
+        return false;
+    }
+
+    private void clearRefs(int fromSlot, int toSlot) {
+        if ((toSlot - fromSlot) >= refs.length) {
+            Arrays.fill(refs, null);
+            return;
+        }
+        int from = fromSlot & slotMask;
+        int to = toSlot & slotMask;
+        if (from <= to) {
+            Arrays.fill(refs, from, to, null);
+        } else {
+            Arrays.fill(refs, from, refs.length, null);
+            Arrays.fill(refs, 0, to, null);
+        }
+    }
+
+    /**
+     * grows the frame arrays, or once at the limit, gives up the outermost frame to the one being pushed.
+     * Until the limit is reached, no frame has wrapped, so frames keep their indices as the arrays grow.
+     */
+    private void frameOverflow() {
+        if (methodIds.length < maxFrameCapacity) {
+            int newSize = methodIds.length * 2;
+            methodIds = Arrays.copyOf(methodIds, newSize);
+            slotBases = Arrays.copyOf(slotBases, newSize);
+            frameMask = newSize - 1;
+        } else {
+            lostFrames = Math.max(lostFrames, depth - methodIds.length + 1);
+            overflowedFrames++;
+        }
+    }
+
+    private void slotOverflow() {
+        if (prims.length < maxSlotCapacity) {
+            int newSize = prims.length * 2;
+            prims = Arrays.copyOf(prims, newSize);
+            refs = Arrays.copyOf(refs, newSize);
+            slotMask = newSize - 1;
+        } else {
+            lostSlots = Math.max(lostSlots, slotTop - prims.length + 1);
+        }
+    }
+
+    private static int powerOfTwo(int value) {
+        int highBit = Integer.highestOneBit(value);
+        return (highBit == value) ? value : highBit << 1;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameStack[depth=" + depth + ", slots=" + slotTop + "]";
+    }
+}
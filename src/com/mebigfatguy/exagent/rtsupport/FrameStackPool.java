@@ -0,0 +1,63 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * recycles frame stacks between threads, for pooled thread state. A thread borrows a stack on entering its
+ * outermost instrumented method, and returns it when that method exits, leaving the stack empty, so that
+ * many short lived threads, such as virtual threads, share a few stacks rather than each allocating its own.
+ * Stacks returned once the pool is full are left to the garbage collector.
+ */
+public class FrameStackPool {
+
+    private static final int MAX_POOLED = 1024;
+
+    private static final ConcurrentLinkedQueue<FrameStack> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private FrameStackPool() {
+    }
+
+    static FrameStack borrow(Thread owner) {
+        FrameStack fs = POOL.poll();
+        if (fs == null) {
+            return new FrameStack(owner, true);
+        }
+        POOLED.decrementAndGet();
+        fs.adopt(owner);
+        return fs;
+    }
+
+    static void release(FrameStack fs) {
+        if (POOLED.incrementAndGet() > MAX_POOLED) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        POOL.offer(fs);
+    }
+
+    /**
+     * @return the number of stacks waiting to be borrowed
+     */
+    public static int getPooledCount() {
+        return POOLED.get();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+/**
+ * fills in and commits the flight recorder events of the {@link JfrSink}. This is the only class, along with the
+ * event and its setting, that refers to jdk.jfr.
+ */
+class JfrEventWriter implements JfrSink.Writer {
+
+    @Override
+    public void write(Throwable t, FrameStack fs, int depth, int lastFrame, ExceptionFingerprint fp) {
+        ExceptionFramesEvent event = new ExceptionFramesEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+
+        event.frameCount = depth - Math.max(lastFrame, fs.getLostFrames());
+        // checks the recording's settings, such as the minimum frames, before any strings are built
+        if (!event.shouldCommit()) {
+            return;
+        }
+
+        event.exceptionClass = t.getClass();
+        event.message = t.getMessage();
+        event.fingerprint = (fp == null) ? null : fp.getReference();
+        StringBuilder frames = new StringBuilder(256);
+        EXASupport.renderFrames(frames, fs, depth, lastFrame);
+        if ((frames.length() > 0) && (frames.charAt(0) == '\n')) {
+            frames.deleteCharAt(0);
+        }
+        event.frames = frames.toString();
+        event.commit();
+    }
+
+    @Override
+    public String toString() {
+        return "JfrEventWriter[]";
+    }
+}
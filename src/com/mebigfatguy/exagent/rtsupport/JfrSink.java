@@ -0,0 +1,82 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+/**
+ * records the captured frames of each exception thrown as a flight recorder event, rather than, or as well as,
+ * adding them to the exception's message. The event classes need jdk.jfr, which not every java 8 runtime has, so
+ * they are only loaded, reflectively, once the sink is enabled, and the sink stays disabled if they can't be.
+ * Events are only built while a recording has them enabled, and the parameters are only rendered for those the
+ * recording's settings will keep.
+ */
+public class JfrSink {
+
+    private static final String WRITER_CLASS_NAME = "com.mebigfatguy.exagent.rtsupport.JfrEventWriter";
+
+    private static volatile Writer writer;
+
+    private JfrSink() {
+    }
+
+    /**
+     * @return whether the sink is enabled, which is false if flight recorder events are not available
+     */
+    public static synchronized boolean setEnabled(boolean enabled) {
+        if (!enabled) {
+            writer = null;
+            return false;
+        }
+        if (writer == null) {
+            try {
+                writer = (Writer) Class.forName(WRITER_CLASS_NAME).getDeclaredConstructor().newInstance();
+            } catch (Exception | LinkageError e) {
+                // swallow it, there is no flight recorder
+            }
+        }
+        return writer != null;
+    }
+
+    public static boolean isEnabled() {
+        return writer != null;
+    }
+
+    /**
+     * records the frames from the innermost down to lastFrame, if a recording wants them. This is called by the
+     * throwing thread, so never throws.
+     *
+     * @param fp the exception's fingerprint, or null if it wasn't fingerprinted
+     */
+    public static void publish(Throwable t, FrameStack fs, int depth, int lastFrame, ExceptionFingerprint fp) {
+        Writer w = writer;
+        if (w == null) {
+            return;
+        }
+        try {
+            w.write(t, fs, depth, lastFrame, fp);
+        } catch (RuntimeException e) {
+            // swallow it
+        }
+    }
+
+    /**
+     * implemented by the class that depends on jdk.jfr
+     */
+    interface Writer {
+        void write(Throwable t, FrameStack fs, int depth, int lastFrame, ExceptionFingerprint fp);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mebigfatguy.exagent.ExAgent;
+import com.mebigfatguy.exagent.MethodInfo;
+
+/**
+ * a global, append only table of instrumented methods. Methods are registered once when their
+ * class is transformed, and the probes then only need to pass around the int id of the method.
+ * A method registered again, as when its class is retransformed, gets back the id it already has,
+ * so that the table only grows with the methods instrumented, not the times they are.
+ */
+public class MethodRegistry {
+
+    private static final Object LOCK = new Object();
+    private static final Map<MethodInfo, Integer> IDS = new HashMap<>();
+    
+    private static volatile MethodInfo[] methodInfos = new MethodInfo[1024];
+    private static int count;
+    private static volatile boolean offlineConfigured;
+    
+    private MethodRegistry() {
+    }
+    
+    public static int register(MethodInfo mi) {
+        synchronized (LOCK) {
+            Integer id = IDS.get(mi);
+            if (id != null) {
+                return id.intValue();
+            }
+
+            MethodInfo[] infos = methodInfos;
+            if (count == infos.length) {
+                infos = Arrays.copyOf(infos, count * 2);
+            }
+            infos[count] = mi;
+            // the volatile write publishes the new entry to running threads
+            methodInfos = infos;
+            IDS.put(mi, Integer.valueOf(count));
+            return count++;
+        }
+    }
+    
+    /**
+     * registers the methods of a class instrumented ahead of time, which is called from the class's static
+     * initializer. Its probes add the index of their method to the returned id. The first such class also
+     * configures the runtime support, when no agent has.
+     * 
+     * @param cls the slashed class name
+     * @param methods each method's name followed by its parameter signatures, separated by tabs
+     * @return the id of the first method, the rest following it in order
+     */
+    public static int registerClass(String cls, String[] methods) {
+        if (!offlineConfigured) {
+            ExAgent.configureOffline();
+            offlineConfigured = true;
+        }
+        
+        MethodInfo[] classInfos = new MethodInfo[methods.length];
+        for (int m = 0; m < methods.length; m++) {
+            String[] parts = methods[m].split("\t", -1);
+            List<String> parmSigs = new ArrayList<>(parts.length - 1);
+            for (int p = 1; p < parts.length; p++) {
+                parmSigs.add(parts[p]);
+            }
+            classInfos[m] = new MethodInfo(cls, parts[0], parmSigs);
+        }
+        
+        synchronized (LOCK) {
+            MethodInfo[] infos = methodInfos;
+            if ((count + classInfos.length) > infos.length) {
+                infos = Arrays.copyOf(infos, Math.max(count * 2, count + classInfos.length));
+            }
+            System.arraycopy(classInfos, 0, infos, count, classInfos.length);
+            methodInfos = infos;
+            int firstId = count;
+            count += classInfos.length;
+            return firstId;
+        }
+    }
+    
+    public static MethodInfo get(int methodId) {
+        return methodInfos[methodId];
+    }
+    
+    public static int size() {
+        synchronized (LOCK) {
+            return count;
+        }
+    }
+}
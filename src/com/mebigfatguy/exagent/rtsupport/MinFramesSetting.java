@@ -0,0 +1,69 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.util.Set;
+
+import jdk.jfr.SettingControl;
+
+/**
+ * the minFrames setting of the {@link ExceptionFramesEvent}. When several recordings are running, the smallest
+ * of their values applies, so that each gets at least the events it asked for.
+ */
+public class MinFramesSetting extends SettingControl {
+
+    private static final String DEFAULT_VALUE = "0";
+
+    private volatile int minFrames;
+
+    @Override
+    public String combine(Set<String> values) {
+        int min = Integer.MAX_VALUE;
+        for (String value : values) {
+            min = Math.min(min, parse(value));
+        }
+        return (min == Integer.MAX_VALUE) ? DEFAULT_VALUE : String.valueOf(min);
+    }
+
+    @Override
+    public void setValue(String value) {
+        minFrames = parse(value);
+    }
+
+    @Override
+    public String getValue() {
+        return String.valueOf(minFrames);
+    }
+
+    int getMinFrames() {
+        return minFrames;
+    }
+
+    private static int parse(String value) {
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MinFramesSetting[minFrames=" + minFrames + "]";
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * renders parameters into a buffer, stopping once the buffer reaches the size limit, so that the cost of
+ * rendering a large array, collection or char sequence is proportional to the limit, rather than to its size.
+ * The output is that of String.valueOf, or Arrays.toString for arrays, cut at the limit. Collections and maps are
+ * rendered element by element only when they use the standard toString of AbstractCollection or AbstractMap,
+ * and other objects are rendered with their own toString, which is then cut.
+ */
+public class ParmRenderer {
+
+    /** how deeply collections held in collections are rendered element by element, before falling back to toString */
+    private static final int MAX_NESTING = 8;
+
+    private static final ClassValue<Boolean> STANDARD_TO_STRING = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                Class<?> declarer = type.getMethod("toString").getDeclaringClass();
+                return Boolean.valueOf((declarer == AbstractCollection.class) || (declarer == AbstractMap.class));
+            } catch (NoSuchMethodException | SecurityException e) {
+                return Boolean.FALSE;
+            }
+        }
+    };
+
+    private ParmRenderer() {
+    }
+
+    /**
+     * appends the parameter to the buffer, which may then exceed the limit by what one primitive element adds
+     *
+     * @param limit the length at which the buffer is full, or 0 for no limit
+     */
+    public static void render(StringBuilder sb, Object parm, int limit) {
+        render(sb, parm, limit, 0);
+    }
+
+    private static void render(StringBuilder sb, Object parm, int limit, int nesting) {
+        if (parm instanceof CharSequence) {
+            append(sb, (CharSequence) parm, limit);
+        } else if (parm instanceof Object[]) {
+            renderArray(sb, (Object[]) parm, limit, nesting);
+        } else if (parm instanceof int[]) {
+            renderArray(sb, (int[]) parm, limit);
+        } else if (parm instanceof long[]) {
+            renderArray(sb, (long[]) parm, limit);
+        } else if (parm instanceof byte[]) {
+            renderArray(sb, (byte[]) parm, limit);
+        } else if (parm instanceof char[]) {
+            renderArray(sb, (char[]) parm, limit);
+        } else if (parm instanceof short[]) {
+            renderArray(sb, (short[]) parm, limit);
+        } else if (parm instanceof boolean[]) {
+            renderArray(sb, (boolean[]) parm, limit);
+        } else if (parm instanceof float[]) {
+            renderArray(sb, (float[]) parm, limit);
+        } else if (parm instanceof double[]) {
+            renderArray(sb, (double[]) parm, limit);
+        } else if ((nesting < MAX_NESTING) && (parm instanceof Collection) && STANDARD_TO_STRING.get(parm.getClass()).booleanValue()) {
+            renderCollection(sb, (Collection<?>) parm, limit, nesting);
+        } else if ((nesting < MAX_NESTING) && (parm instanceof Map) && STANDARD_TO_STRING.get(parm.getClass()).booleanValue()) {
+            renderMap(sb, (Map<?, ?>) parm, limit, nesting);
+        } else {
+            append(sb, String.valueOf(parm), limit);
+        }
+    }
+
+    /**
+     * renders an element of an array or collection, where, as with toString, arrays are just identified
+     */
+    private static void renderElement(StringBuilder sb, Object element, int limit, int nesting) {
+        if ((element != null) && element.getClass().isArray()) {
+            append(sb, String.valueOf(element), limit);
+        } else {
+            render(sb, element, limit, nesting + 1);
+        }
+    }
+
+    private static void renderArray(StringBuilder sb, Object[] a, int limit, int nesting) {
+        sb.append('[');
+        for (int i = 0; (i < a.length) && !isFull(sb, limit); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            renderElement(sb, a[i], limit, nesting);
+        }
+        sb.append(']');
+    }
+
+    private static void renderCollection(StringBuilder sb, Collection<?> c, int limit, int nesting) {
+        sb.append('[');
+        Iterator<?> it = c.iterator();
+        for (int i = 0; it.hasNext() && !isFull(sb, limit); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            Object element = it.next();
+            if (element == c) {
+                sb.append("(this Collection)");
+            } else {
+                renderElement(sb, element, limit, nesting);
+            }
+        }
+        sb.append(']');
+    }
+
+    private static void renderMap(StringBuilder sb, Map<?, ?> m, int limit, int nesting) {
+        sb.append('{');
+        Iterator<? extends Map.Entry<?, ?>> it = m.entrySet().iterator();
+        for (int i = 0; it.hasNext() && !isFull(sb, limit); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            Map.Entry<?, ?> entry = it.next();
+            if (entry.getKey() == m) {
+                sb.append("(this Map)");
+            } else {
+                renderElement(sb, entry.getKey(), limit, nesting);
+            }
+            sb.append('=');
+            if (entry.getValue() == m) {
+                sb.append("(this Map)");
+            } else {
+                renderElement(sb, entry.getValue(), limit, nesting);
+            }
+        }
+        sb.append('}');
+    }
+
+    private static void renderArray(StringBuilder sb, int[] a, int limit) {
+        sb.append('[');
+        for (int i = 0; (i < a.length) && !isFull(sb, limit); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(a[i]);
+        }
+        sb.append(']');
+    }
+
+    private static void renderArray(StringBuilder sb, long[] a, int limit) {
+        sb.append('[');
+        for (int i = 0; (i < a.length) && !isFull(sb, limit); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(a[i]);
+        }
+        sb.append(']');
+    }
+
+    private static void renderArray(StringBuilder sb, byte[] a, int limit) {
+        sb.append('[');
+        for (int i = 0; (i < a.length) && !isFull(sb, limit); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(a[i]);
+        }
+        sb.append(']');
+    }
+
+    private static void renderArray(StringBuilder sb, char[] a, int limit) {
+        sb.append('[');
+        for (int i = 0; (i < a.length) && !isFull(sb, limit); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(a[i]);
+        }
+        sb.append(']');
+    }
+
+    private static void renderArray(StringBuilder sb, short[] a, int limit) {
+        sb.append('[');
+        for (int i = 0; (i < a.length) && !isFull(sb, limit); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(a[i]);
+        }
+        sb.append(']');
+    }
+
+    private static void renderArray(StringBuilder sb, boolean[] a, int limit) {
+        sb.append('[');
+        for (int i = 0; (i < a.length) && !isFull(sb, limit); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(a[i]);
+        }
+        sb.append(']');
+    }
+
+    private static void renderArray(StringBuilder sb, float[] a, int limit) {
+        sb.append('[');
+        for (int i = 0; (i < a.length) && !isFull(sb, limit); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(a[i]);
+        }
+        sb.append(']');
+    }
+
+    private static void renderArray(StringBuilder sb, double[] a, int limit) {
+        sb.append('[');
+        for (int i = 0; (i < a.length) && !isFull(sb, limit); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(a[i]);
+        }
+        sb.append(']');
+    }
+
+    private static void append(StringBuilder sb, CharSequence cs, int limit) {
+        if (limit <= 0) {
+            sb.append(cs);
+        } else {
+            int room = limit - sb.length();
+            if (room > 0) {
+                sb.append(cs, 0, Math.min(cs.length(), room));
+            }
+        }
+    }
+
+    private static boolean isFull(StringBuilder sb, int limit) {
+        return (limit > 0) && (sb.length() >= limit);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.List;
+
+import com.mebigfatguy.exagent.MethodInfo;
+
+/**
+ * writes exception reports to a set of fixed size, memory mapped files, used in rotation. Each file starts with
+ * a header holding its sequence number, followed by length prefixed records, the first zero length ending the
+ * file. A record's length is written after its body, so a process that dies mid record leaves a readable file.
+ * Methods are referenced by id, each file defining the ids it uses before their first use, so that it can be
+ * decoded on its own once older files have been overwritten. This is used only by the writer thread.
+ */
+public class ReportLog implements Closeable {
+
+    public static final int MAGIC = 0x4558414C;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final String FILE_PREFIX = "exagent-";
+    public static final String FILE_SUFFIX = ".exlog";
+
+    public static final byte METHOD_RECORD = 'M';
+    public static final byte REPORT_RECORD = 'R';
+
+    public static final byte INT_VALUE = 'I';
+    public static final byte LONG_VALUE = 'J';
+    public static final byte STRING_VALUE = 'L';
+    public static final byte DROPPED_VALUE = 'X';
+
+    private static final int MIN_FILE_SIZE = 4096;
+
+    private final File dir;
+    private final int fileSize;
+    private final int fileCount;
+    private long sequence;
+    private MappedByteBuffer buffer;
+    private final BitSet definedMethods = new BitSet();
+    private ByteBuffer record = ByteBuffer.allocate(4096);
+    private ByteBuffer definitions = ByteBuffer.allocate(4096);
+
+    public ReportLog(File dir, int fileSize, int fileCount) throws IOException {
+        this.dir = dir;
+        this.fileSize = Math.max(MIN_FILE_SIZE, fileSize);
+        this.fileCount = Math.max(1, fileCount);
+        dir.mkdirs();
+        sequence = lastSequence(dir);
+        rotate();
+    }
+
+    /**
+     * @return the name of the file with the given sequence number
+     */
+    public static String fileName(long sequence, int fileCount) {
+        return FILE_PREFIX + (sequence % fileCount) + FILE_SUFFIX;
+    }
+
+    /**
+     * @return the sequence number from a log file's header, or -1 if it isn't a log file
+     */
+    public static long readSequence(File f) {
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(f))) {
+            if ((dis.readInt() != MAGIC) || (dis.readInt() != VERSION)) {
+                return -1;
+            }
+            return dis.readLong();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * appends a report, preceded by the definitions of any methods new to the current file
+     *
+     * @return false if the report is larger than a file, and so wasn't written
+     */
+    public boolean write(ExceptionReport report) throws IOException {
+        record = encode(report, record);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            definitions = encodeDefinitions(report, definitions);
+            int needed = definitions.position() + 4 + record.position() + 4;
+            if (needed <= buffer.remaining()) {
+                // buffers are cast, as java 9+ compilers otherwise bind to covariant overrides java 8 lacks
+                ((Buffer) definitions).flip();
+                int end = definitions.limit();
+                while (definitions.position() < end) {
+                    int length = definitions.getInt();
+                    ((Buffer) definitions).limit(definitions.position() + length);
+                    append(definitions);
+                    ((Buffer) definitions).limit(end);
+                }
+                ((Buffer) record).flip();
+                append(record);
+                for (int id : report.methodIds) {
+                    definedMethods.set(id);
+                }
+                return true;
+            }
+            if (attempt == 0) {
+                rotate();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * writes the record's body, a zero length after it, and then its length, so the record only becomes
+     * visible once complete
+     */
+    private void append(ByteBuffer body) {
+        int start = buffer.position();
+        int length = body.remaining();
+        ((Buffer) buffer).position(start + 4);
+        buffer.put(body);
+        if (buffer.remaining() >= 4) {
+            buffer.putInt(buffer.position(), 0);
+        }
+        buffer.putInt(start, length);
+    }
+
+    private ByteBuffer encodeDefinitions(ExceptionReport report, ByteBuffer out) {
+        ((Buffer) out).clear();
+        BitSet pending = null;
+        for (int id : report.methodIds) {
+            if (definedMethods.get(id) || ((pending != null) && pending.get(id))) {
+                continue;
+            }
+            if (pending == null) {
+                pending = new BitSet();
+            }
+            pending.set(id);
+
+            MethodInfo mi = MethodRegistry.get(id);
+            List<String> sigs = mi.getParmSignatures();
+            while (true) {
+                int start = out.position();
+                try {
+                    out.putInt(0);
+                    out.put(METHOD_RECORD);
+                    out.putInt(id);
+                    putString(out, mi.getCls());
+                    putString(out, mi.getName());
+                    out.putInt(sigs.size());
+                    for (String sig : sigs) {
+                        putString(out, sig);
+                    }
+                    out.putInt(start, out.position() - start - 4);
+                    break;
+                } catch (BufferOverflowException e) {
+                    ((Buffer) out).position(start);
+                    out = grow(out);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static ByteBuffer encode(ExceptionReport report, ByteBuffer out) {
+        while (true) {
+            ((Buffer) out).clear();
+            try {
+                encodeReport(report, out);
+                return out;
+            } catch (BufferOverflowException e) {
+                out = grow(out);
+            }
+        }
+    }
+
+    /**
+     * encodes the report, rendering its reference parameters
+     */
+    private static void encodeReport(ExceptionReport report, ByteBuffer out) {
+        out.put(REPORT_RECORD);
+        out.putLong(report.time);
+        out.putLong(report.threadId);
+        putString(out, report.threadName);
+        putString(out, report.exceptionClass);
+        putString(out, report.message);
+        out.putInt(report.omittedFrames);
+        out.putInt(report.methodIds.length);
+
+        int slot = 0;
+        for (int f = 0; f < report.methodIds.length; f++) {
+            out.putInt(report.methodIds[f]);
+            int count = report.slotCounts[f];
+            out.putInt(count);
+            if (count <= 0) {
+                continue;
+            }
+
+            List<String> sigs = MethodRegistry.get(report.methodIds[f]).getParmSignatures();
+            for (int i = 0; i < count; i++, slot++) {
+                char sigType = (i < sigs.size()) ? sigs.get(i).charAt(0) : 'L';
+                Object ref = report.refs[slot];
+                if (ref == FrameStack.DROPPED) {
+                    out.put(DROPPED_VALUE);
+                } else if ((sigType == 'J') || (sigType == 'D')) {
+                    out.put(LONG_VALUE);
+                    out.putLong(report.prims[slot]);
+                } else if ((sigType == 'L') || (sigType == '[')) {
+                    out.put(STRING_VALUE);
+                    putString(out, EXASupport.renderParm(ref));
+                } else {
+                    out.put(INT_VALUE);
+                    out.putInt((int) report.prims[slot]);
+                }
+            }
+        }
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        if (s == null) {
+            out.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    private static ByteBuffer grow(ByteBuffer bb) {
+        ByteBuffer bigger = ByteBuffer.allocate(bb.capacity() * 2);
+        ((Buffer) bb).flip();
+        bigger.put(bb);
+        return bigger;
+    }
+
+    /**
+     * moves on to the next file, overwriting it if it is in use from an earlier rotation
+     */
+    private void rotate() throws IOException {
+        sequence++;
+        File f = new File(dir, fileName(sequence, fileCount));
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(fileSize);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        }
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(sequence);
+        buffer.putInt(buffer.position(), 0);
+        definedMethods.clear();
+    }
+
+    private static long lastSequence(File dir) {
+        long last = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(FILE_PREFIX) && f.getName().endsWith(FILE_SUFFIX)) {
+                    last = Math.max(last, readSequence(f));
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * flushes the current file to disk
+     */
+    @Override
+    public void close() {
+        buffer.force();
+    }
+
+    @Override
+    public String toString() {
+        return "ReportLog[dir=" + dir + ", sequence=" + sequence + ", position=" + buffer.position() + "]";
+    }
+}
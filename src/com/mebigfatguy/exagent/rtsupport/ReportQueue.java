@@ -0,0 +1,94 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * a bounded, lock-free queue of reports, with many producers, the throwing threads, and a single consumer.
+ * Producers link a node in with one atomic swap of the tail, so they never wait on each other or the consumer.
+ * A node is visible to the consumer only once its producer has linked it, so a producer preempted between the
+ * swap and the link briefly hides the nodes after its own, which the consumer then picks up on its next poll.
+ */
+public class ReportQueue {
+
+    private final AtomicReference<Node> tail;
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+    private Node head;
+
+    public ReportQueue(int capacity) {
+        this.capacity = capacity;
+        head = new Node(null);
+        tail = new AtomicReference<>(head);
+    }
+
+    /**
+     * adds a report, from any thread
+     *
+     * @return false if the queue is full, and the report was dropped
+     */
+    public boolean offer(ExceptionReport report) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return false;
+        }
+
+        Node node = new Node(report);
+        Node prev = tail.getAndSet(node);
+        prev.next = node;
+        return true;
+    }
+
+    /**
+     * removes the oldest report, from the consumer thread only
+     *
+     * @return the report, or null if the queue is empty
+     */
+    public ExceptionReport poll() {
+        Node next = head.next;
+        if (next == null) {
+            return null;
+        }
+
+        ExceptionReport report = next.report;
+        next.report = null;
+        head = next;
+        size.decrementAndGet();
+        return report;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ReportQueue[size=" + size.get() + ", capacity=" + capacity + "]";
+    }
+
+    static final class Node {
+        ExceptionReport report;
+        volatile Node next;
+
+        Node(ExceptionReport report) {
+            this.report = report;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * publishes exception reports to a binary log. The throwing thread only copies its captured frames onto a queue,
+ * and a background thread renders the parameters and appends them to the log, so no strings are built on the
+ * throwing thread. Reports are dropped, rather than blocking the throwing thread, when the writer falls behind.
+ */
+public class ReportSink implements Runnable {
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long STOP_TIMEOUT_MILLIS = 5000L;
+
+    private static final LongAdder DROPPED_REPORTS = new LongAdder();
+
+    private static volatile ReportSink sink;
+    private static Thread shutdownHook;
+
+    private final ReportQueue queue = new ReportQueue(QUEUE_CAPACITY);
+    private final ReportLog log;
+    private final int maxFrames;
+    private Thread writerThread;
+    private volatile boolean running = true;
+    private volatile long writtenReports;
+
+    private ReportSink(ReportLog reportLog, int frames) {
+        log = reportLog;
+        maxFrames = frames;
+    }
+
+    /**
+     * starts logging reports, replacing any sink already running. If the log can't be created, reports aren't logged.
+     *
+     * @param maxFrames the number of innermost frames to report, or 0 for all of them
+     */
+    public static synchronized void start(File dir, int fileSize, int fileCount, int maxFrames) {
+        stop();
+
+        ReportLog reportLog;
+        try {
+            reportLog = new ReportLog(dir, fileSize, fileCount);
+        } catch (IOException e) {
+            return;
+        }
+
+        ReportSink s = new ReportSink(reportLog, maxFrames);
+        s.writerThread = new Thread(s, "exagent-report-writer");
+        s.writerThread.setDaemon(true);
+        s.writerThread.start();
+        sink = s;
+
+        if (shutdownHook == null) {
+            shutdownHook = new Thread(ReportSink::stop, "exagent-report-flush");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+    }
+
+    /**
+     * stops logging, after writing the reports already queued
+     */
+    public static synchronized void stop() {
+        ReportSink s = sink;
+        if (s == null) {
+            return;
+        }
+
+        sink = null;
+        s.running = false;
+        LockSupport.unpark(s.writerThread);
+        try {
+            s.writerThread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * queues a report of the exception, if a sink is running. This is called by the probes right before a throw,
+     * and so never throws itself. Exceptions thrown while the writer renders parameters aren't reported.
+     */
+    public static void publish(Throwable t, FrameStack fs) {
+        ReportSink s = sink;
+        if ((s == null) || (s.writerThread == Thread.currentThread())) {
+            return;
+        }
+
+        try {
+            if (!s.queue.offer(ExceptionReport.capture(t, fs, s.maxFrames))) {
+                DROPPED_REPORTS.increment();
+            }
+        } catch (RuntimeException e) {
+            // swallow it
+        }
+    }
+
+    public static boolean isRunning() {
+        return sink != null;
+    }
+
+    public static long getWrittenReports() {
+        ReportSink s = sink;
+        return (s == null) ? 0 : s.writtenReports;
+    }
+
+    public static long getDroppedReports() {
+        return DROPPED_REPORTS.sum();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                ExceptionReport report = queue.poll();
+                if (report != null) {
+                    write(report);
+                } else if (running) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    private void write(ExceptionReport report) {
+        try {
+            if (log.write(report)) {
+                writtenReports++;
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            // swallow it
+        }
+        DROPPED_REPORTS.increment();
+    }
+
+    @Override
+    public String toString() {
+        return "ReportSink[" + log + ", queued=" + queue.size() + ", written=" + writtenReports + "]";
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+/**
+ * adapts the sample interval so that the number of calls whose parameters are captured stays within a
+ * budget of calls per second. Recorded calls are the cost of capturing, each costing about the same, so
+ * this bounds the cpu spent capturing. Once a second, the interval is doubled when over budget, and halved,
+ * down to the configured interval, when well under it.
+ */
+public class SamplingController implements Runnable {
+
+    private static final long PERIOD_MILLIS = 1000L;
+    private static final int MAX_INTERVAL = 1 << 24;
+
+    private static Thread controllerThread;
+
+    private int budget;
+    private int minInterval;
+    private boolean random;
+    private long lastRecorded;
+
+    private SamplingController(int callsPerSecond, int interval, boolean randomSampling) {
+        budget = callsPerSecond;
+        minInterval = interval;
+        random = randomSampling;
+    }
+
+    /**
+     * starts adapting the sample interval, replacing any controller already running
+     */
+    public static synchronized void start(int callsPerSecond, int interval, boolean randomSampling) {
+        stop();
+        controllerThread = new Thread(new SamplingController(callsPerSecond, interval, randomSampling), "exagent-sampling");
+        controllerThread.setDaemon(true);
+        controllerThread.start();
+    }
+
+    public static synchronized void stop() {
+        if (controllerThread != null) {
+            controllerThread.interrupt();
+            controllerThread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        lastRecorded = totalRecorded();
+        try {
+            while (!Thread.interrupted()) {
+                Thread.sleep(PERIOD_MILLIS);
+                adjust();
+            }
+        } catch (InterruptedException e) {
+            // just exit
+        }
+    }
+
+    private void adjust() {
+        long recorded = totalRecorded();
+        // stacks of threads that have died drop out of the total
+        long perSecond = (Math.max(0, recorded - lastRecorded) * 1000L) / PERIOD_MILLIS;
+        lastRecorded = recorded;
+
+        int interval = FrameStack.getSampleInterval();
+        if ((perSecond > budget) && (interval < MAX_INTERVAL)) {
+            FrameStack.setSampling(interval * 2, random);
+        } else if ((perSecond < (budget / 4)) && (interval > minInterval)) {
+            FrameStack.setSampling(Math.max(minInterval, interval / 2), random);
+        }
+    }
+
+    private static long totalRecorded() {
+        long total = 0;
+        for (FrameStack fs : FrameStack.getStacks()) {
+            total += fs.getRecordedFrames();
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "SamplingController[budget=" + budget + ", interval=" + FrameStack.getSampleInterval() + "]";
+    }
+}
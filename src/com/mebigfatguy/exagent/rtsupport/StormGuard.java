@@ -0,0 +1,129 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * limits the cost of exception storms, where the same exception is thrown from the same place over and over.
+ * Throws are fingerprinted by exception type and the methods of the frames that would be added to the message,
+ * and only the first few of each fingerprint in a window are fully embellished. Once the table of fingerprints
+ * is full, the ones seen least recently are dropped to make room for new ones.
+ */
+public class StormGuard {
+
+    private static final int MAX_FINGERPRINTS = 4096;
+    /** the fingerprints dropped at once when the table is full, so that the sort is only paid every so often */
+    private static final int EVICTION_BATCH = MAX_FINGERPRINTS / 4;
+
+    private static final ConcurrentHashMap<Long, ExceptionFingerprint> FINGERPRINTS = new ConcurrentHashMap<>();
+
+    private static int limit;
+    private static long windowNanos = TimeUnit.SECONDS.toNanos(60);
+
+    private StormGuard() {
+    }
+
+    /**
+     * @param occurrences the number of throws of a fingerprint to embellish in each window, or 0 to embellish all of them
+     */
+    public static void configure(int occurrences, long windowMillis) {
+        limit = occurrences;
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    public static boolean isEnabled() {
+        return limit > 0;
+    }
+
+    /**
+     * @return the fingerprint of the throw
+     */
+    static ExceptionFingerprint fingerprint(Throwable t, FrameStack fs, int firstFrame) {
+        String exceptionClass = t.getClass().getName();
+        int depth = fs.getDepth();
+        long hash = exceptionClass.hashCode();
+        for (int f = depth - 1; f >= firstFrame; f--) {
+            hash = (hash * 31) + fs.getMethodId(f);
+        }
+        hash = mix(hash);
+
+        Long key = Long.valueOf(hash);
+        ExceptionFingerprint fp = FINGERPRINTS.get(key);
+        if (fp == null) {
+            if (FINGERPRINTS.size() >= MAX_FINGERPRINTS) {
+                evictStalest();
+            }
+            fp = FINGERPRINTS.computeIfAbsent(key, k -> new ExceptionFingerprint(k.longValue(), exceptionClass, (depth > firstFrame) ? fs.getMethodId(depth - 1) : -1));
+        }
+        return fp;
+    }
+
+    /**
+     * counts a throw of the fingerprint
+     *
+     * @return the number of throws in the current window, if over the limit, or 0 if the throw is to be embellished
+     */
+    static int check(ExceptionFingerprint fp) {
+        int count = fp.occurred(System.nanoTime(), windowNanos);
+        if (count <= limit) {
+            return 0;
+        }
+        fp.suppressed();
+        return count;
+    }
+
+    public static long getWindowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(windowNanos);
+    }
+
+    public static List<ExceptionFingerprint> getFingerprints() {
+        return new ArrayList<>(FINGERPRINTS.values());
+    }
+
+    private static synchronized void evictStalest() {
+        if (FINGERPRINTS.size() < MAX_FINGERPRINTS) {
+            // another thread made room
+            return;
+        }
+
+        List<ExceptionFingerprint> fingerprints = new ArrayList<>(FINGERPRINTS.values());
+        fingerprints.sort(Comparator.comparingLong(ExceptionFingerprint::getLastSeen));
+        int evictions = Math.min(fingerprints.size(), (fingerprints.size() - MAX_FINGERPRINTS) + EVICTION_BATCH);
+        for (int i = 0; i < evictions; i++) {
+            ExceptionFingerprint fp = fingerprints.get(i);
+            FINGERPRINTS.remove(Long.valueOf(fp.getHash()), fp);
+        }
+    }
+
+    /**
+     * spreads the bits of the polynomial hash, as in murmur3's finalizer
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
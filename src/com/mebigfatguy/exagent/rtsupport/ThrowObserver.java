@@ -0,0 +1,131 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * collects the exceptions seen by the throw observers of adaptive mode, along with those that go uncaught,
+ * for a background thread to look through. The throwing thread just queues the exception, and the queue is
+ * bounded, so a storm of exceptions costs little more than the exceptions themselves.
+ */
+public class ThrowObserver {
+
+    private static final int MAX_PENDING = 256;
+
+    private static final ConcurrentLinkedQueue<Throwable> PENDING = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger PENDING_COUNT = new AtomicInteger();
+
+    private static volatile boolean observing;
+    /**
+     * an exception is usually observed by several handlers as it unwinds, only the first is needed. It is recognized
+     * by its identity hash and thread, rather than held, so that the last exception isn't kept from being collected.
+     */
+    private static volatile long lastObserved;
+    private static boolean handlerInstalled;
+
+    private ThrowObserver() {
+    }
+
+    /**
+     * starts or stops queueing observed exceptions. Starting also observes the exceptions that go uncaught, through
+     * a default uncaught exception handler that hands them on to any handler that was already set.
+     */
+    public static synchronized void setObserving(boolean observe) {
+        observing = observe;
+        if (!observe) {
+            lastObserved = 0;
+            Throwable t;
+            while ((t = PENDING.poll()) != null) {
+                PENDING_COUNT.decrementAndGet();
+            }
+        } else if (!handlerInstalled) {
+            handlerInstalled = true;
+            Thread.setDefaultUncaughtExceptionHandler(new ObservingHandler(Thread.getDefaultUncaughtExceptionHandler()));
+        }
+    }
+
+    public static boolean isObserving() {
+        return observing;
+    }
+
+    /**
+     * called by instrumented methods as they throw or catch an exception
+     */
+    public static void observe(Throwable t) {
+        if (!observing || (t == null)) {
+            return;
+        }
+        // thread ids start at 1, so this is never 0
+        long observed = (Thread.currentThread().getId() << 32) | (System.identityHashCode(t) & 0xFFFFFFFFL);
+        if (observed == lastObserved) {
+            return;
+        }
+        lastObserved = observed;
+
+        if (PENDING_COUNT.incrementAndGet() > MAX_PENDING) {
+            PENDING_COUNT.decrementAndGet();
+            return;
+        }
+        PENDING.offer(t);
+    }
+
+    /**
+     * @return the oldest exception observed and not yet taken, or null if there is none
+     */
+    public static Throwable poll() {
+        Throwable t = PENDING.poll();
+        if (t != null) {
+            PENDING_COUNT.decrementAndGet();
+        }
+        return t;
+    }
+
+    @Override
+    public String toString() {
+        return "ThrowObserver[observing=" + observing + ", pending=" + PENDING_COUNT.get() + "]";
+    }
+
+    static class ObservingHandler implements UncaughtExceptionHandler {
+
+        private UncaughtExceptionHandler next;
+
+        ObservingHandler(UncaughtExceptionHandler nextHandler) {
+            next = nextHandler;
+        }
+
+        @Override
+        public void uncaughtException(Thread thread, Throwable t) {
+            observe(t);
+            if (next != null) {
+                next.uncaughtException(thread, t);
+            } else if (!(t instanceof ThreadDeath)) {
+                // what the thread group does when there is no default handler
+                System.err.print("Exception in thread \"" + thread.getName() + "\" ");
+                t.printStackTrace(System.err);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ObservingHandler[next=" + next + "]";
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import com.mebigfatguy.exagent.rtsupport.EXASupport;
+import com.mebigfatguy.exagent.rtsupport.FrameStack;
+
+/**
+ * checks that the frames of instrumented methods are popped by their frame restoring handlers when an exception
+ * thrown by a callee, rather than by the method itself, propagates through them, so that a pool thread that keeps
+ * catching such exceptions in uninstrumented code doesn't accumulate frames
+ */
+public class StackTraceMethodVisitorTest {
+
+    private static final String FIXTURE_CLASS_NAME = Fixture.class.getName();
+    private static final int CALLS = 10000;
+
+    private ExecutorService pool;
+    private Class<?> fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        ExAgent.configure(new Options(null));
+        pool = Executors.newSingleThreadExecutor();
+        fixture = new InstrumentingLoader(getClass().getClassLoader()).loadClass(FIXTURE_CLASS_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testJdkCalleeExceptionPopsFrames() throws Exception {
+        final Method outer = fixture.getMethod("outer", String.class);
+        FrameCounts counts = pool.submit(new Callable<FrameCounts>() {
+            @Override
+            public FrameCounts call() throws Exception {
+                FrameCounts before = new FrameCounts();
+                for (int i = 0; i < CALLS; i++) {
+                    try {
+                        outer.invoke(null, "not a number " + i);
+                    } catch (InvocationTargetException e) {
+                        if (!(e.getCause() instanceof NumberFormatException)) {
+                            throw e;
+                        }
+                    }
+                }
+                return new FrameCounts().since(before);
+            }
+        }).get();
+
+        // outer, middle and parse are each pushed once per call
+        assertEquals(3L * CALLS, counts.pushed);
+        assertEquals(counts.pushed, counts.popped);
+        assertEquals(0, counts.depth);
+    }
+
+    @Test
+    public void testUninstrumentedCalleeExceptionPopsFrames() throws Exception {
+        final Method viaCallback = fixture.getMethod("viaCallback", Runnable.class);
+        FrameCounts counts = pool.submit(new Callable<FrameCounts>() {
+            @Override
+            public FrameCounts call() throws Exception {
+                Runnable failing = new Runnable() {
+                    @Override
+                    public void run() {
+                        assertTrue(EXASupport.getFrameStack().getDepth() >= 2);
+                        throw new IllegalStateException("callback failed");
+                    }
+                };
+
+                FrameCounts before = new FrameCounts();
+                for (int i = 0; i < CALLS; i++) {
+                    try {
+                        viaCallback.invoke(null, failing);
+                    } catch (InvocationTargetException e) {
+                        if (!(e.getCause() instanceof IllegalStateException)) {
+                            throw e;
+                        }
+                    }
+                }
+                return new FrameCounts().since(before);
+            }
+        }).get();
+
+        // viaCallback and call are each pushed once per call
+        assertEquals(2L * CALLS, counts.pushed);
+        assertEquals(counts.pushed, counts.popped);
+        assertEquals(0, counts.depth);
+    }
+
+    /**
+     * the frame counts of the calling thread's stack
+     */
+    static class FrameCounts {
+        long pushed;
+        long popped;
+        int depth;
+
+        FrameCounts() {
+            FrameStack fs = EXASupport.getFrameStack();
+            pushed = fs.getPushedFrames();
+            popped = fs.getPoppedFrames();
+            depth = fs.getDepth();
+        }
+
+        FrameCounts since(FrameCounts before) {
+            pushed -= before.pushed;
+            popped -= before.popped;
+            return this;
+        }
+    }
+
+    /**
+     * instrumented by the test, each of its methods only passes on the exceptions of its callees
+     */
+    public static class Fixture {
+
+        public static int outer(String s) {
+            return middle(s) + 1;
+        }
+
+        static int middle(String s) {
+            return parse(s) * 2;
+        }
+
+        static int parse(String s) {
+            return Integer.parseInt(s);
+        }
+
+        public static void viaCallback(Runnable r) {
+            call(r);
+        }
+
+        static void call(Runnable r) {
+            r.run();
+        }
+    }
+
+    /**
+     * defines its own, instrumented, copy of the fixture, and leaves all other classes to its parent
+     */
+    static class InstrumentingLoader extends ClassLoader {
+
+        InstrumentingLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(FIXTURE_CLASS_NAME)) {
+                return super.loadClass(name, resolve);
+            }
+
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    byte[] bytes = instrument(name);
+                    c = defineClass(name, bytes, 0, bytes.length);
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+
+        private byte[] instrument(String name) throws ClassNotFoundException {
+            try (InputStream is = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int len;
+                while ((len = is.read(buffer)) >= 0) {
+                    baos.write(buffer, 0, len);
+                }
+
+                ClassReader cr = new ClassReader(baos.toByteArray());
+                ClassWriter cw = new HierarchyClassWriter(cr, ClassWriter.COMPUTE_MAXS, getParent());
+                cr.accept(new StackTraceClassVisitor(cw, new Options(null), Collections.<String>emptySet()), ClassReader.EXPAND_FRAMES);
+                return cw.toByteArray();
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+}
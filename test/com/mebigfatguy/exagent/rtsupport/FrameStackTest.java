@@ -0,0 +1,192 @@
+/*
+ * exagent - An exception stack trace embellisher
+ * Copyright 2014-2019 MeBigFatGuy.com
+ * Copyright 2014-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.exagent.rtsupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * checks that a frame limited stack keeps its innermost frames at any depth, in bounded memory, and that
+ * popping past the overwritten frames leaves it usable
+ */
+public class FrameStackTest {
+
+    private static final int LIMIT = 64;
+    private static final int DEPTH = 100000;
+    /** the slots of a stack limited to LIMIT frames, at 8 per frame */
+    private static final int SLOT_CAPACITY = 512;
+
+    @After
+    public void tearDown() {
+        FrameStack.setFrameLimit(0);
+    }
+
+    @Test
+    public void testUnlimitedKeepsAllFrames() {
+        FrameStack fs = new FrameStack(Thread.currentThread());
+        pushFrames(fs, 0, 1000);
+
+        assertEquals(1000, fs.getDepth());
+        assertEquals(0, fs.getLostFrames());
+        assertEquals(0, fs.getOverflowedFrames());
+        assertFrames(fs, 0, 1000);
+    }
+
+    @Test
+    public void testDeepRecursionKeepsInnermostFrames() {
+        FrameStack.setFrameLimit(LIMIT);
+        FrameStack fs = new FrameStack(Thread.currentThread());
+        pushFrames(fs, 0, DEPTH);
+
+        assertEquals(DEPTH, fs.getDepth());
+        assertEquals(DEPTH, fs.getMaxDepth());
+        assertEquals(DEPTH - LIMIT, fs.getLostFrames());
+        assertEquals(DEPTH - LIMIT, fs.getOverflowedFrames());
+        assertFrames(fs, DEPTH - LIMIT, DEPTH);
+
+        String longest = param(DEPTH - 1);
+        assertTrue("held " + fs.getHeldBytes(), fs.getHeldBytes() <= SLOT_CAPACITY * (8L + (2L * longest.length())));
+    }
+
+    @Test
+    public void testSmallLimitKeepsOnlyThatManyFrames() {
+        FrameStack.setFrameLimit(4);
+        FrameStack fs = new FrameStack(Thread.currentThread());
+        pushFrames(fs, 0, 1000);
+
+        assertEquals(1000 - 4, fs.getLostFrames());
+        assertEquals(1000 - 4, fs.getOverflowedFrames());
+        assertFrames(fs, 1000 - 4, 1000);
+        // 4 frames of 8 slots each
+        assertTrue("held " + fs.getHeldBytes(), fs.getHeldBytes() <= 32 * (8L + (2L * param(999).length())));
+    }
+
+    @Test
+    public void testLimitRoundsUpToPowerOfTwo() {
+        FrameStack.setFrameLimit(3);
+        FrameStack fs = new FrameStack(Thread.currentThread());
+        pushFrames(fs, 0, 100);
+
+        assertEquals(100 - 4, fs.getLostFrames());
+        assertFrames(fs, 100 - 4, 100);
+    }
+
+    @Test
+    public void testFrameWiderThanItsShareLosesItsSlots() {
+        FrameStack.setFrameLimit(1);
+        FrameStack fs = new FrameStack(Thread.currentThread());
+        fs.push(0);
+        for (int p = 0; p < 12; p++) {
+            fs.putInt(p);
+        }
+
+        assertEquals(0, fs.getLostFrames());
+        assertEquals(0, fs.getMethodId(0));
+        assertFalse(fs.hasSlots(0));
+
+        fs.popTo(0);
+        pushFrames(fs, 0, 1);
+        assertFrames(fs, 0, 1);
+    }
+
+    @Test
+    public void testWideFramesLoseSlotsBeforeFrames() {
+        FrameStack.setFrameLimit(LIMIT);
+        FrameStack fs = new FrameStack(Thread.currentThread());
+        for (int frame = 0; frame < LIMIT; frame++) {
+            fs.push(frame);
+            for (int p = 0; p < 32; p++) {
+                fs.putLong(frame);
+            }
+        }
+
+        assertEquals(0, fs.getLostFrames());
+        assertTrue(fs.hasSlots(LIMIT - 1));
+        assertEquals(LIMIT - 1, fs.getPrim(fs.getSlotBase(LIMIT - 1)));
+        assertFalse(fs.hasSlots(0));
+    }
+
+    @Test
+    public void testPopWithinRing() {
+        FrameStack.setFrameLimit(LIMIT);
+        FrameStack fs = new FrameStack(Thread.currentThread());
+        pushFrames(fs, 0, DEPTH);
+
+        fs.popTo(DEPTH - 10);
+        assertEquals(DEPTH - 10, fs.getDepth());
+        assertEquals(DEPTH - LIMIT, fs.getLostFrames());
+        assertFrames(fs, DEPTH - LIMIT, DEPTH - 10);
+
+        pushFrames(fs, DEPTH - 10, DEPTH);
+        assertEquals(DEPTH - LIMIT, fs.getLostFrames());
+        assertFrames(fs, DEPTH - LIMIT, DEPTH);
+    }
+
+    @Test
+    public void testPopPastLostFrames() {
+        FrameStack.setFrameLimit(LIMIT);
+        FrameStack fs = new FrameStack(Thread.currentThread());
+        pushFrames(fs, 0, DEPTH);
+
+        fs.popTo(100);
+        assertEquals(100, fs.getDepth());
+        // the frames below were all overwritten, so none of them can be rendered
+        assertEquals(100, fs.getLostFrames());
+        assertEquals(0, fs.getHeldBytes());
+
+        pushFrames(fs, 100, 110);
+        assertEquals(100, fs.getLostFrames());
+        assertFrames(fs, 100, 110);
+
+        fs.popTo(0);
+        assertEquals(0, fs.getDepth());
+        assertEquals(0, fs.getLostFrames());
+
+        pushFrames(fs, 0, LIMIT);
+        assertEquals(0, fs.getLostFrames());
+        assertFrames(fs, 0, LIMIT);
+        assertEquals(DEPTH + 10 + LIMIT, fs.getPushedFrames());
+    }
+
+    private static void pushFrames(FrameStack fs, int from, int to) {
+        for (int frame = from; frame < to; frame++) {
+            assertEquals(frame, fs.push(frame));
+            fs.putInt(frame);
+            fs.putRef(param(frame));
+        }
+    }
+
+    private static void assertFrames(FrameStack fs, int from, int to) {
+        for (int frame = from; frame < to; frame++) {
+            assertEquals(frame, fs.getMethodId(frame));
+            assertTrue(fs.hasSlots(frame));
+            int base = fs.getSlotBase(frame);
+            assertEquals(base + 2, fs.getSlotLimit(frame));
+            assertEquals(frame, fs.getPrim(base));
+            assertEquals(param(frame), fs.getRef(base + 1));
+        }
+    }
+
+    private static String param(int frame) {
+        return "p" + frame;
+    }
+}